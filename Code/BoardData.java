@@ -0,0 +1,110 @@
+import java.util.Arrays;
+
+// A puzzle as plain primitives, detached from GamePieces and javalib, so that
+// large batches can be stored and analysed cheaply. Each tile is one byte in
+// column-major order: the scrambled mask in the low four bits and the solved
+// mask in the high four bits.
+class BoardData {
+  int width;
+  int height;
+  long seed;
+  int radius;
+  int powerCol;
+  int powerRow;
+  int difficulty;
+  byte[] tiles;
+  // tiles are column-major whatever layout the board was played in
+  TileLayout layout;
+
+  BoardData(int width, int height, long seed, int radius, int powerCol, int powerRow,
+      int difficulty, byte[] tiles) {
+    this.width = width;
+    this.height = height;
+    this.seed = seed;
+    this.radius = radius;
+    this.powerCol = powerCol;
+    this.powerRow = powerRow;
+    this.difficulty = difficulty;
+    this.tiles = tiles;
+    this.layout = new ColumnMajorLayout(width, height);
+  }
+
+  // Captures a freshly generated world, made from the given seed: its current
+  // masks as the scramble and its spanning tree as the solution
+  BoardData(LightEmAll world, long seed) {
+    this(world.width, world.height, seed, world.radius, world.powerCol, world.powerRow, 0,
+        new byte[world.width * world.height]);
+    for (GamePiece gp : world.nodes) {
+      this.tiles[gp.col * this.height + gp.row] = (byte) gp.mask();
+    }
+    for (Edge e : world.mst) {
+      this.connect(e.fromNode, e.toNode);
+      this.connect(e.toNode, e.fromNode);
+    }
+  }
+
+  // Copies puzzle n out of the given pack
+  BoardData(PuzzlePack pack, int n) {
+    this(pack.width(n), pack.height(n), pack.seed(n), pack.radius(n), pack.powerCol(n),
+        pack.powerRow(n), pack.difficulty(n), new byte[pack.width(n) * pack.height(n)]);
+    for (int i = 0; i < this.tiles.length; i++) {
+      this.tiles[i] = (byte) pack.tile(n, i / this.height, i % this.height);
+    }
+  }
+
+  // sets the solved wire from one tile toward an adjacent one
+  void connect(GamePiece from, GamePiece to) {
+    int side;
+    if (to.row < from.row) {
+      side = GamePiece.TOP;
+    }
+    else if (to.col > from.col) {
+      side = GamePiece.RIGHT;
+    }
+    else if (to.row > from.row) {
+      side = GamePiece.BOTTOM;
+    }
+    else {
+      side = GamePiece.LEFT;
+    }
+    this.tiles[from.col * this.height + from.row] |= side << 4;
+  }
+
+  int scrambled(int i) {
+    return this.tiles[i] & 0xF;
+  }
+
+  int solved(int i) {
+    return (this.tiles[i] >> 4) & 0xF;
+  }
+
+  // The index of the tile on the given side of tile i, or -1 at the border
+  int neighbor(int i, int side) {
+    return this.layout.neighbor(i, side);
+  }
+
+  // Breadth-first distances from the given tile over the solved wiring,
+  // -1 for tiles it cannot reach
+  int[] distances(int start) {
+    int[] dist = new int[this.tiles.length];
+    Arrays.fill(dist, -1);
+    int[] queue = new int[this.tiles.length];
+    int head = 0;
+    int tail = 0;
+    queue[tail++] = start;
+    dist[start] = 0;
+
+    while (head < tail) {
+      int cur = queue[head++];
+      int m = this.solved(cur);
+      for (int side = GamePiece.TOP; side <= GamePiece.LEFT; side <<= 1) {
+        int next = this.neighbor(cur, side);
+        if ((m & side) != 0 && next >= 0 && dist[next] < 0) {
+          dist[next] = dist[cur] + 1;
+          queue[tail++] = next;
+        }
+      }
+    }
+    return dist;
+  }
+}
@@ -0,0 +1,144 @@
+import java.util.ArrayList;
+
+// Keeps track of the disjoint wire segments (connected components) of a board.
+// Tiles are labelled by component, and a rotation only relabels the components
+// that touched the rotated tile, so segment count and largest segment size are
+// always up to date and answered in constant time.
+class ComponentTracker {
+  TileLayout layout;
+  int width;
+  int height;
+  // the wire mask of every tile, indexed by layout
+  int[] masks;
+  // the component label of every tile
+  int[] label;
+  // the number of tiles carrying each label
+  int[] compSize;
+  // labels not currently in use, as a stack
+  int[] freeLabels;
+  int freeCount;
+  // how many components there are of each size
+  int[] sizeCount;
+  int segments;
+  int largest;
+
+  // scratch space for relabelling, reused across rotations
+  int[] queue;
+  int[] stamp;
+  int epoch;
+
+  ComponentTracker(TileLayout layout, int width, int height, ArrayList<GamePiece> nodes) {
+    this.layout = layout;
+    this.width = width;
+    this.height = height;
+    int n = width * height;
+    this.masks = new int[n];
+    this.label = new int[n];
+    this.compSize = new int[n];
+    this.freeLabels = new int[n];
+    this.sizeCount = new int[n + 1];
+    this.queue = new int[n];
+    this.stamp = new int[n];
+    this.rebuild(nodes);
+  }
+
+  // Relabels every tile from scratch using the current wiring of the given nodes
+  void rebuild(ArrayList<GamePiece> nodes) {
+    for (GamePiece gp : nodes) {
+      this.masks[this.layout.index(gp.col, gp.row)] = gp.mask();
+    }
+    for (int i = 0; i < this.freeLabels.length; i++) {
+      this.freeLabels[i] = this.freeLabels.length - 1 - i;
+      this.sizeCount[i + 1] = 0;
+    }
+    this.freeCount = this.freeLabels.length;
+    this.segments = 0;
+    this.largest = 0;
+
+    this.epoch++;
+    for (int i = 0; i < this.masks.length; i++) {
+      if (this.stamp[i] != this.epoch) {
+        this.addComponent(i);
+      }
+    }
+  }
+
+  // the number of disjoint wire segments on the board
+  int segmentCount() {
+    return this.segments;
+  }
+
+  // the number of tiles in the biggest wire segment on the board
+  int largestSegment() {
+    return this.largest;
+  }
+
+  // Updates the components after the given piece has been rotated. Only the
+  // components of the piece and its four neighbors can have changed.
+  void rotated(GamePiece gp) {
+    int idx = this.layout.index(gp.col, gp.row);
+    int[] touched = new int[] {idx,
+        this.layout.neighbor(idx, GamePiece.TOP),
+        this.layout.neighbor(idx, GamePiece.RIGHT),
+        this.layout.neighbor(idx, GamePiece.BOTTOM),
+        this.layout.neighbor(idx, GamePiece.LEFT)};
+
+    for (int i = 0; i < touched.length; i++) {
+      if (touched[i] >= 0 && this.compSize[this.label[touched[i]]] > 0) {
+        this.removeComponent(this.label[touched[i]]);
+      }
+    }
+    while (this.largest > 0 && this.sizeCount[this.largest] == 0) {
+      this.largest--;
+    }
+
+    this.masks[idx] = gp.mask();
+    this.epoch++;
+    for (int i = 0; i < touched.length; i++) {
+      if (touched[i] >= 0 && this.stamp[touched[i]] != this.epoch) {
+        this.addComponent(touched[i]);
+      }
+    }
+  }
+
+  // Forgets the component with the given label
+  void removeComponent(int lbl) {
+    this.sizeCount[this.compSize[lbl]]--;
+    this.compSize[lbl] = 0;
+    this.freeLabels[this.freeCount] = lbl;
+    this.freeCount++;
+    this.segments--;
+  }
+
+  // Labels every tile connected to the given one as a new component
+  void addComponent(int start) {
+    this.freeCount--;
+    int lbl = this.freeLabels[this.freeCount];
+    int head = 0;
+    int tail = 0;
+    this.queue[tail++] = start;
+    this.stamp[start] = this.epoch;
+
+    while (head < tail) {
+      int cur = this.queue[head++];
+      this.label[cur] = lbl;
+      int m = this.masks[cur];
+      for (int side = GamePiece.TOP; side <= GamePiece.LEFT; side <<= 1) {
+        int next = this.layout.neighbor(cur, side);
+        if ((m & side) != 0 && next >= 0
+            && (this.masks[next] & GamePiece.opposite(side)) != 0
+            && this.stamp[next] != this.epoch) {
+          this.stamp[next] = this.epoch;
+          this.queue[tail++] = next;
+        }
+      }
+    }
+
+    this.compSize[lbl] = tail;
+    this.sizeCount[tail]++;
+    this.segments++;
+    if (tail > this.largest) {
+      this.largest = tail;
+    }
+  }
+}
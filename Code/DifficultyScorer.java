@@ -0,0 +1,526 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+// Scores large batches of puzzles by how hard they are, in parallel, over
+// BoardData rather than full LightEmAll worlds. For every board it measures
+//   misoriented   tiles whose scrambled mask differs from the solution
+//   branchDepth   how deep OrientationSolver had to guess to find a solution
+//   diameter      the diameter of the solved wiring, as found by findRadius,
+//                 and that diameter per thousand tiles
+//   stationMoves  the fewest station moves until every tile is in range
+// and combines them into a single difficulty, see difficulty.
+//   java DifficultyScorer <out> <pack>
+//   java DifficultyScorer <out> <width> <height> <count> [firstSeed]
+class DifficultyScorer {
+  // how many guesses the solver may make on one board before giving up
+  static int SOLVER_BUDGET = 20000;
+
+  public static void main(String[] args) throws IOException {
+    BoardData[] boards;
+    if (args.length == 2) {
+      PuzzlePack pack = new PuzzlePack(Paths.get(args[1]));
+      boards = new BoardData[pack.count];
+      for (int i = 0; i < pack.count; i++) {
+        boards[i] = new BoardData(pack, i);
+      }
+    }
+    else if (args.length >= 4) {
+      boards = DifficultyScorer.generate(Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+          Integer.parseInt(args[3]), args.length > 4 ? Long.parseLong(args[4]) : 0);
+    }
+    else {
+      System.err.println("Usage: java DifficultyScorer <out> <pack>");
+      System.err.println("       java DifficultyScorer <out> <width> <height> <count> [firstSeed]");
+      return;
+    }
+
+    long start = System.nanoTime();
+    ScoreColumns scores = DifficultyScorer.scoreAll(boards);
+    System.out.printf("Scored %d boards in %.1f ms%n", boards.length,
+        (System.nanoTime() - start) / 1e6);
+    scores.write(Paths.get(args[0]));
+  }
+
+  // Generates count boards from consecutive seeds, in parallel
+  static BoardData[] generate(int width, int height, int count, long firstSeed) {
+    BoardData[] boards = new BoardData[count];
+    IntStream.range(0, count).parallel()
+        .forEach(new GenerateBoard(boards, width, height, firstSeed));
+    return boards;
+  }
+
+  // Scores every given board, in parallel, into one column per metric
+  static ScoreColumns scoreAll(BoardData[] boards) {
+    ScoreColumns scores = new ScoreColumns(boards.length);
+    IntStream.range(0, boards.length).parallel().forEach(new ScoreBoard(boards, scores));
+    return scores;
+  }
+
+  // the number of tiles that are not already in their solved orientation
+  static int misoriented(BoardData board) {
+    int count = 0;
+    for (int i = 0; i < board.tiles.length; i++) {
+      if (board.scrambled(i) != board.solved(i)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  // the index of the largest of the given distances
+  static int farthest(int[] dist) {
+    int best = 0;
+    for (int i = 1; i < dist.length; i++) {
+      if (dist[i] > dist[best]) {
+        best = i;
+      }
+    }
+    return best;
+  }
+
+  // Combines the metrics of one board: the percentage of misoriented tiles,
+  // ten points per level of solver guessing, and the station's trip to a tile
+  // that powers the whole board as a percentage of the radius
+  static int difficulty(int tiles, int misoriented, int branchDepth, int stationMoves,
+      int radius) {
+    return 100 * misoriented / tiles + 10 * branchDepth + 100 * stationMoves / Math.max(1, radius);
+  }
+}
+
+//Function Class that generates board i of a batch from seed firstSeed + i
+class GenerateBoard implements IntConsumer {
+  BoardData[] boards;
+  int width;
+  int height;
+  long firstSeed;
+
+  GenerateBoard(BoardData[] boards, int width, int height, long firstSeed) {
+    this.boards = boards;
+    this.width = width;
+    this.height = height;
+    this.firstSeed = firstSeed;
+  }
+
+  public void accept(int i) {
+    long seed = this.firstSeed + i;
+    this.boards[i] = new BoardData(new LightEmAll(this.width, this.height, new Random(seed)), seed);
+  }
+}
+
+//Function Class that scores board i of a batch into row i of the columns
+class ScoreBoard implements IntConsumer {
+  BoardData[] boards;
+  ScoreColumns scores;
+
+  ScoreBoard(BoardData[] boards, ScoreColumns scores) {
+    this.boards = boards;
+    this.scores = scores;
+  }
+
+  public void accept(int i) {
+    BoardData board = this.boards[i];
+    int tiles = board.tiles.length;
+
+    // the solution is a tree, so a tile's eccentricity is its distance to the
+    // farther end of a diameter, which three searches find for every tile
+    int station = board.powerCol * board.height + board.powerRow;
+    int[] fromStation = board.distances(station);
+    int end1 = DifficultyScorer.farthest(fromStation);
+    int[] fromEnd1 = board.distances(end1);
+    int end2 = DifficultyScorer.farthest(fromEnd1);
+    int[] fromEnd2 = board.distances(end2);
+
+    int moves = -1;
+    for (int v = 0; v < tiles; v++) {
+      if (Math.max(fromEnd1[v], fromEnd2[v]) < board.radius
+          && (moves < 0 || fromStation[v] < moves)) {
+        moves = fromStation[v];
+      }
+    }
+
+    int misoriented = DifficultyScorer.misoriented(board);
+    int depth = new OrientationSolver(board, DifficultyScorer.SOLVER_BUDGET).solve();
+
+    this.scores.seed[i] = board.seed;
+    this.scores.misoriented[i] = misoriented;
+    this.scores.branchDepth[i] = depth;
+    this.scores.diameter[i] = fromEnd1[end2];
+    this.scores.diameterPermille[i] = 1000 * fromEnd1[end2] / tiles;
+    this.scores.stationMoves[i] = moves;
+    this.scores.difficulty[i] =
+        DifficultyScorer.difficulty(tiles, misoriented, depth, Math.max(0, moves), board.radius);
+  }
+}
+
+// Finds an orientation of every tile that wires the board into a single tree,
+// by constraint propagation between neighbors and guessing only when stuck.
+// The deepest chain of guesses it needed is a measure of how hard the board
+// is to reason about.
+class OrientationSolver {
+  // SETS_WITH[side] is the set of masks (as bits of an int) with a wire on
+  // that side, SETS_WITHOUT[side] the set without
+  static int[] SETS_WITH = new int[9];
+  static int[] SETS_WITHOUT = new int[9];
+  static {
+    for (int side = GamePiece.TOP; side <= GamePiece.LEFT; side <<= 1) {
+      for (int m = 0; m < 16; m++) {
+        if ((m & side) != 0) {
+          SETS_WITH[side] |= 1 << m;
+        }
+        else {
+          SETS_WITHOUT[side] |= 1 << m;
+        }
+      }
+    }
+  }
+
+  BoardData board;
+  int budget;
+  int guesses;
+  int maxDepth;
+  // scratch space for propagation
+  int[] queue;
+  boolean[] queued;
+
+  OrientationSolver(BoardData board, int budget) {
+    this.board = board;
+    this.budget = budget;
+    this.queue = new int[board.tiles.length];
+    this.queued = new boolean[board.tiles.length];
+  }
+
+  // the set of distinct rotations of the given mask
+  static int rotations(int mask) {
+    int result = 0;
+    for (int i = 0; i < 4; i++) {
+      result |= 1 << mask;
+      mask = ((mask << 1) | (mask >> 3)) & 0xF;
+    }
+    return result;
+  }
+
+  // Solves the board and returns the deepest guess it took. If the budget ran
+  // out first, this is how deep it had got.
+  int solve() {
+    int[] cand = new int[this.board.tiles.length];
+    for (int i = 0; i < cand.length; i++) {
+      cand[i] = OrientationSolver.rotations(this.board.scrambled(i));
+    }
+    this.search(cand, -1, 0);
+    return this.maxDepth;
+  }
+
+  // Propagates from the given tile (or every tile, if -1), then guesses on
+  // the least certain tile. Returns whether a solution was found.
+  boolean search(int[] cand, int changed, int depth) {
+    this.maxDepth = Math.max(this.maxDepth, depth);
+    if (!this.propagate(cand, changed)) {
+      return false;
+    }
+
+    int pick = -1;
+    for (int i = 0; i < cand.length; i++) {
+      if (Integer.bitCount(cand[i]) > 1
+          && (pick < 0 || Integer.bitCount(cand[i]) < Integer.bitCount(cand[pick]))) {
+        pick = i;
+      }
+    }
+    if (pick < 0) {
+      return this.isTree(cand);
+    }
+
+    for (int m = 0; m < 16; m++) {
+      if ((cand[pick] & (1 << m)) != 0) {
+        if (this.guesses >= this.budget) {
+          return false;
+        }
+        this.guesses++;
+        int[] next = cand.clone();
+        next[pick] = 1 << m;
+        if (this.search(next, pick, depth + 1)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  // Removes candidates that cannot match any candidate of a neighbor, until
+  // nothing changes. Returns false if some tile is left with no candidates.
+  boolean propagate(int[] cand, int changed) {
+    int head = 0;
+    int tail = 0;
+    if (changed < 0) {
+      for (int i = 0; i < cand.length; i++) {
+        this.queue[tail++] = i;
+        this.queued[i] = true;
+      }
+    }
+    else {
+      for (int side = GamePiece.TOP; side <= GamePiece.LEFT; side <<= 1) {
+        int j = this.board.neighbor(changed, side);
+        if (j >= 0) {
+          this.queue[tail++] = j;
+          this.queued[j] = true;
+        }
+      }
+    }
+
+    boolean ok = true;
+    int size = cand.length;
+    // a full pass fills the queue, so the count is taken before tail wraps
+    int pending = tail;
+    tail = tail % size;
+    while (pending > 0) {
+      int i = this.queue[head];
+      head = (head + 1) % size;
+      pending--;
+      this.queued[i] = false;
+      if (!ok) {
+        continue;
+      }
+
+      int allowed = cand[i];
+      for (int side = GamePiece.TOP; side <= GamePiece.LEFT; side <<= 1) {
+        int j = this.board.neighbor(i, side);
+        if (j < 0) {
+          allowed &= SETS_WITHOUT[side];
+        }
+        else {
+          int opp = GamePiece.opposite(side);
+          if ((cand[j] & SETS_WITH[opp]) == 0) {
+            allowed &= SETS_WITHOUT[side];
+          }
+          if ((cand[j] & SETS_WITHOUT[opp]) == 0) {
+            allowed &= SETS_WITH[side];
+          }
+        }
+      }
+
+      if (allowed == 0) {
+        ok = false;
+      }
+      else if (allowed != cand[i]) {
+        cand[i] = allowed;
+        for (int side = GamePiece.TOP; side <= GamePiece.LEFT; side <<= 1) {
+          int j = this.board.neighbor(i, side);
+          if (j >= 0 && !this.queued[j]) {
+            this.queue[tail] = j;
+            tail = (tail + 1) % size;
+            pending++;
+            this.queued[j] = true;
+          }
+        }
+      }
+    }
+    return ok;
+  }
+
+  // whether fully decided candidates wire every tile into one tree
+  boolean isTree(int[] cand) {
+    int edges = 0;
+    for (int i = 0; i < cand.length; i++) {
+      int m = Integer.numberOfTrailingZeros(cand[i]);
+      edges += Integer.bitCount(m & (GamePiece.RIGHT | GamePiece.BOTTOM));
+    }
+    if (edges != cand.length - 1) {
+      return false;
+    }
+
+    boolean[] seen = new boolean[cand.length];
+    int head = 0;
+    int tail = 0;
+    this.queue[tail++] = 0;
+    seen[0] = true;
+    while (head < tail) {
+      int cur = this.queue[head++];
+      int m = Integer.numberOfTrailingZeros(cand[cur]);
+      for (int side = GamePiece.TOP; side <= GamePiece.LEFT; side <<= 1) {
+        int j = this.board.neighbor(cur, side);
+        if ((m & side) != 0 && j >= 0 && !seen[j]) {
+          seen[j] = true;
+          this.queue[tail++] = j;
+        }
+      }
+    }
+    return tail == cand.length;
+  }
+}
+
+// Difficulty metrics for a batch of boards, one array per metric, so a file
+// of them can be read back one column at a time
+class ScoreColumns {
+  static int MAGIC = 0x4C454153;
+  static int VERSION = 1;
+  static String[] NAMES = new String[] {"seed", "misoriented", "branchDepth", "diameter",
+      "diameterPermille", "stationMoves", "difficulty"};
+
+  int count;
+  long[] seed;
+  int[] misoriented;
+  int[] branchDepth;
+  int[] diameter;
+  int[] diameterPermille;
+  int[] stationMoves;
+  int[] difficulty;
+
+  ScoreColumns(int count) {
+    this.count = count;
+    this.seed = new long[count];
+    this.misoriented = new int[count];
+    this.branchDepth = new int[count];
+    this.diameter = new int[count];
+    this.diameterPermille = new int[count];
+    this.stationMoves = new int[count];
+    this.difficulty = new int[count];
+  }
+
+  // Reads back a file written by write
+  ScoreColumns(Path path) throws IOException {
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Not a score file: " + path);
+      }
+      this.count = in.readInt();
+      int columns = in.readInt();
+      this.seed = new long[this.count];
+      this.misoriented = new int[this.count];
+      this.branchDepth = new int[this.count];
+      this.diameter = new int[this.count];
+      this.diameterPermille = new int[this.count];
+      this.stationMoves = new int[this.count];
+      this.difficulty = new int[this.count];
+
+      for (int c = 0; c < columns; c++) {
+        String name = in.readUTF();
+        long[] values = ScoreColumns.readColumn(in, this.count);
+        if (name.equals("seed")) {
+          this.seed = values;
+        }
+        else {
+          int[] target = this.intColumn(name);
+          for (int i = 0; target != null && i < this.count; i++) {
+            target[i] = (int) values[i];
+          }
+        }
+      }
+    }
+  }
+
+  // the int column with the given name, or null if there is none
+  int[] intColumn(String name) {
+    if (name.equals("misoriented")) {
+      return this.misoriented;
+    }
+    else if (name.equals("branchDepth")) {
+      return this.branchDepth;
+    }
+    else if (name.equals("diameter")) {
+      return this.diameter;
+    }
+    else if (name.equals("diameterPermille")) {
+      return this.diameterPermille;
+    }
+    else if (name.equals("stationMoves")) {
+      return this.stationMoves;
+    }
+    else if (name.equals("difficulty")) {
+      return this.difficulty;
+    }
+    else {
+      return null;
+    }
+  }
+
+  // Writes a header, then every column in turn, each stored with the fewest
+  // bytes per value that fit all of its values
+  void write(Path path) throws IOException {
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(this.count);
+      out.writeInt(NAMES.length);
+      for (String name : NAMES) {
+        long[] values = new long[this.count];
+        if (name.equals("seed")) {
+          values = this.seed;
+        }
+        else {
+          int[] column = this.intColumn(name);
+          for (int i = 0; i < this.count; i++) {
+            values[i] = column[i];
+          }
+        }
+        out.writeUTF(name);
+        ScoreColumns.writeColumn(out, values);
+      }
+    }
+  }
+
+  // the number of bytes needed to store every one of the given values
+  static int byteWidth(long[] values) {
+    int width = 1;
+    for (long v : values) {
+      if (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE) {
+        return 8;
+      }
+      else if (v < Short.MIN_VALUE || v > Short.MAX_VALUE) {
+        width = 4;
+      }
+      else if ((v < Byte.MIN_VALUE || v > Byte.MAX_VALUE) && width < 2) {
+        width = 2;
+      }
+    }
+    return width;
+  }
+
+  static void writeColumn(DataOutputStream out, long[] values) throws IOException {
+    int width = ScoreColumns.byteWidth(values);
+    out.writeByte(width);
+    for (long v : values) {
+      if (width == 1) {
+        out.writeByte((int) v);
+      }
+      else if (width == 2) {
+        out.writeShort((int) v);
+      }
+      else if (width == 4) {
+        out.writeInt((int) v);
+      }
+      else {
+        out.writeLong(v);
+      }
+    }
+  }
+
+  static long[] readColumn(DataInputStream in, int count) throws IOException {
+    int width = in.readByte();
+    long[] values = new long[count];
+    for (int i = 0; i < count; i++) {
+      if (width == 1) {
+        values[i] = in.readByte();
+      }
+      else if (width == 2) {
+        values[i] = in.readShort();
+      }
+      else if (width == 4) {
+        values[i] = in.readInt();
+      }
+      else {
+        values[i] = in.readLong();
+      }
+    }
+    return values;
+  }
+}
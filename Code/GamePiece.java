@@ -51,6 +51,12 @@ class GamePiece {
   // default size of image representation
   static int TILE_SIZE = 50;
 
+  // bits of a packed wire mask, one per side, in clockwise order
+  static int TOP = 1;
+  static int RIGHT = 2;
+  static int BOTTOM = 4;
+  static int LEFT = 8;
+
   // piece before wires are placed onto it
   static WorldImage BACKGROUND = 
       new OverlayImage(
@@ -120,24 +126,80 @@ class GamePiece {
     this.right = tempTop;
   }
 
-  // draws the representation of this gamepiece by placing the wires on the blank square gamepiece
-  WorldImage drawTile(int radius) {
-    WorldImage result = GamePiece.BACKGROUND;
-    Color color = Color.gray;
+  // packs the wires of this tile into a mask of TOP, RIGHT, BOTTOM and LEFT bits
+  int mask() {
+    int result = 0;
+    if (this.top) {
+      result |= TOP;
+    }
+    if (this.right) {
+      result |= RIGHT;
+    }
+    if (this.bottom) {
+      result |= BOTTOM;
+    }
+    if (this.left) {
+      result |= LEFT;
+    }
+    return result;
+  }
+
+  // Sets the wires of this tile from a mask of TOP, RIGHT, BOTTOM and LEFT bits
+  void setMask(int mask) {
+    this.top = (mask & TOP) != 0;
+    this.right = (mask & RIGHT) != 0;
+    this.bottom = (mask & BOTTOM) != 0;
+    this.left = (mask & LEFT) != 0;
+  }
+
+  // the side facing the given one across an edge
+  static int opposite(int side) {
+    return ((side << 2) | (side >> 2)) & 0xF;
+  }
+
+  // wire colors from unpowered (band 0) up to fully powered (band 4)
+  static Color[] WIRE_COLORS = new Color[] {
+      Color.gray,
+      GamePiece.hsbColor(160, 82, 45),
+      GamePiece.hsbColor(250, 140, 0),
+      Color.orange,
+      Color.yellow};
+
+  // the given RGB color, after a round trip through HSB
+  static Color hsbColor(int r, int g, int b) {
+    float[] hsb = Color.RGBtoHSB(r, g, b, null);
+    return Color.getHSBColor(hsb[0], hsb[1], hsb[2]);
+  }
+
+  // How strongly this tile is powered relative to the given radius, as an index
+  // into WIRE_COLORS
+  int powerBand(int radius) {
     if (this.powerLevel >= (radius * 0.75)) {
-      color = Color.yellow;
+      return 4;
     }
     else if (this.powerLevel >= (radius * 0.5)) {
-      color = Color.orange;
+      return 3;
     }
     else if (this.powerLevel >= (radius * 0.25)) {
-      float[] hsb = Color.RGBtoHSB(250, 140, 0, null);
-      color = Color.getHSBColor(hsb[0], hsb[1], hsb[2]); 
+      return 2;
     }
     else if (this.powerLevel > 0) {
-      float[] hsb = Color.RGBtoHSB(160, 82, 45, null);
-      color = Color.getHSBColor(hsb[0], hsb[1], hsb[2]); 
+      return 1;
+    }
+    else {
+      return 0;
     }
+  }
+
+  // draws the representation of this gamepiece by placing the wires on the blank square gamepiece
+  WorldImage drawTile(int radius) {
+    return this.drawInBand(this.powerBand(radius));
+  }
+
+  // draws this gamepiece with its wires colored for the given power band
+  WorldImage drawInBand(int band) {
+    WorldImage result = GamePiece.BACKGROUND;
+    Color color = WIRE_COLORS[band];
 
     if (this.right) {
       result = new OverlayOffsetAlign(AlignModeX.LEFT, AlignModeY.MIDDLE,
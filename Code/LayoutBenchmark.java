@@ -0,0 +1,226 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+// Compares TileLayouts on large boards. For each layout it builds the same
+// random spanning tree, stores it in that layout's order, and times a flood
+// from the top-left corner over it, the way recomputePower floods from the
+// station: once over plain masks and once over GamePieces allocated in
+// layout order, as LightEmAll does. Then it generates a real LightEmAll in
+// that layout and times generating it, findRadius, and recomputePower over
+// the whole solved board.
+//   java -Xmx4500m LayoutBenchmark [size] [runs] [column|row|blocked|morton ...]
+// The JVM cannot read hardware counters itself; for cache misses run one
+// layout at a time under perf, e.g.
+//   perf stat -e cache-references,cache-misses java -Xmx4500m LayoutBenchmark 2000 5 morton
+class LayoutBenchmark {
+  public static void main(String[] args) {
+    int size = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+    String[] names = args.length > 2
+        ? Arrays.copyOfRange(args, 2, args.length)
+        : new String[] {"column", "row", "blocked", "morton"};
+
+    byte[] tree = LayoutBenchmark.spanningTree(size, size, new Random(2000));
+    System.out.printf("%dx%d board, best of %d runs%n", size, size, runs);
+    for (String name : names) {
+      TileLayout layout = LayoutBenchmark.layoutNamed(name, size, size);
+      LayoutBenchmark bench = new LayoutBenchmark(layout, size, size, tree);
+      long masks = Long.MAX_VALUE;
+      long pieces = Long.MAX_VALUE;
+      for (int r = 0; r < runs; r++) {
+        masks = Math.min(masks, bench.timeMaskFlood());
+        pieces = Math.min(pieces, bench.timePieceFlood());
+      }
+      System.out.printf("%-8s masks %8.1f Mtiles/s   pieces %8.1f Mtiles/s%n", name,
+          size * (double) size / masks * 1e3, size * (double) size / pieces * 1e3);
+    }
+
+    for (String name : names) {
+      LayoutBenchmark.timeBoard(name, size, runs);
+    }
+  }
+
+  // Generates a real board in the named layout and times it, then times
+  // findRadius and powering every tile of the solved board from the station
+  static void timeBoard(String name, int size, int runs) {
+    long start = System.nanoTime();
+    LightEmAll world = new LightEmAll(size, size, new Random(2000),
+        LayoutBenchmark.layoutNamed(name, size, size));
+    long generate = System.nanoTime() - start;
+    world.clearBoard();
+    world.makeMSTBoard();
+    world.radius = size * size;
+
+    long radius = Long.MAX_VALUE;
+    long power = Long.MAX_VALUE;
+    for (int r = 0; r < runs; r++) {
+      start = System.nanoTime();
+      world.findRadius();
+      radius = Math.min(radius, System.nanoTime() - start);
+      world.radius = size * size;
+
+      start = System.nanoTime();
+      world.recomputePower();
+      power = Math.min(power, System.nanoTime() - start);
+    }
+    System.out.printf("%-8s board generated in %.1f s, findRadius %.0f ms, recomputePower %.0f ms%n",
+        name, generate / 1e9, radius / 1e6, power / 1e6);
+  }
+
+  static TileLayout layoutNamed(String name, int width, int height) {
+    if (name.equals("column")) {
+      return new ColumnMajorLayout(width, height);
+    }
+    else if (name.equals("row")) {
+      return new RowMajorLayout(width, height);
+    }
+    else if (name.equals("blocked")) {
+      return new BlockedLayout(width, height, 64);
+    }
+    else if (name.equals("morton")) {
+      return new MortonLayout(width, height);
+    }
+    else {
+      throw new IllegalArgumentException("Unknown layout: " + name);
+    }
+  }
+
+  // A random spanning tree of the grid as column-major masks, built with
+  // Kruskal's algorithm over shuffled edges and an array union-find
+  static byte[] spanningTree(int width, int height, Random rand) {
+    int n = width * height;
+    // edge e joins tile e / 2 to the tile right of it (even) or below it (odd)
+    int[] edges = new int[2 * n];
+    int count = 0;
+    for (int i = 0; i < n; i++) {
+      if (i / height < width - 1) {
+        edges[count++] = 2 * i;
+      }
+      if (i % height < height - 1) {
+        edges[count++] = 2 * i + 1;
+      }
+    }
+    for (int i = count - 1; i > 0; i--) {
+      int j = rand.nextInt(i + 1);
+      int tmp = edges[i];
+      edges[i] = edges[j];
+      edges[j] = tmp;
+    }
+
+    int[] reps = new int[n];
+    for (int i = 0; i < n; i++) {
+      reps[i] = i;
+    }
+    byte[] masks = new byte[n];
+    for (int k = 0; k < count; k++) {
+      int from = edges[k] / 2;
+      boolean right = edges[k] % 2 == 0;
+      int to = right ? from + height : from + 1;
+      int a = LayoutBenchmark.find(reps, from);
+      int b = LayoutBenchmark.find(reps, to);
+      if (a != b) {
+        reps[a] = b;
+        masks[from] |= right ? GamePiece.RIGHT : GamePiece.BOTTOM;
+        masks[to] |= right ? GamePiece.LEFT : GamePiece.TOP;
+      }
+    }
+    return masks;
+  }
+
+  // the representative of i, halving the path to it on the way
+  static int find(int[] reps, int i) {
+    while (reps[i] != i) {
+      reps[i] = reps[reps[i]];
+      i = reps[i];
+    }
+    return i;
+  }
+
+  TileLayout layout;
+  int width;
+  int height;
+  // the tree's masks and pieces, in layout order
+  byte[] masks;
+  ArrayList<GamePiece> nodes;
+  int[] level;
+  int[] queue;
+
+  LayoutBenchmark(TileLayout layout, int width, int height, byte[] tree) {
+    this.layout = layout;
+    this.width = width;
+    this.height = height;
+    this.masks = new byte[tree.length];
+    GamePiece[] pieces = new GamePiece[tree.length];
+    for (int i = 0; i < tree.length; i++) {
+      int col = layout.col(i);
+      int row = layout.row(i);
+      this.masks[i] = tree[col * height + row];
+      pieces[i] = new GamePiece(false, false, false, false, row, col);
+      pieces[i].setMask(this.masks[i]);
+    }
+    this.nodes = new ArrayList<GamePiece>(Arrays.asList(pieces));
+    this.level = new int[tree.length];
+    this.queue = new int[tree.length];
+  }
+
+  // nanoseconds to flood the whole tree over the masks
+  long timeMaskFlood() {
+    long start = System.nanoTime();
+    Arrays.fill(this.level, 0);
+    int head = 0;
+    int tail = 0;
+    int first = this.layout.index(0, 0);
+    this.level[first] = this.masks.length;
+    this.queue[tail++] = first;
+
+    while (head < tail) {
+      int cur = this.queue[head++];
+      int m = this.masks[cur];
+      for (int side = GamePiece.TOP; side <= GamePiece.LEFT; side <<= 1) {
+        int next = this.layout.neighbor(cur, side);
+        if ((m & side) != 0 && this.level[next] == 0) {
+          this.level[next] = this.level[cur] - 1;
+          this.queue[tail++] = next;
+        }
+      }
+    }
+    LayoutBenchmark.check(tail, this.masks.length);
+    return System.nanoTime() - start;
+  }
+
+  // nanoseconds to flood the whole tree over the GamePieces
+  long timePieceFlood() {
+    long start = System.nanoTime();
+    for (GamePiece gp : this.nodes) {
+      gp.unpower();
+    }
+    int head = 0;
+    int tail = 0;
+    int first = this.layout.index(0, 0);
+    this.nodes.get(first).powerLevel = this.masks.length;
+    this.queue[tail++] = first;
+
+    while (head < tail) {
+      int idx = this.queue[head++];
+      GamePiece cur = this.nodes.get(idx);
+      int m = cur.mask();
+      for (int side = GamePiece.TOP; side <= GamePiece.LEFT; side <<= 1) {
+        int next = this.layout.neighbor(idx, side);
+        if ((m & side) != 0 && this.nodes.get(next).powerLevel == 0) {
+          this.nodes.get(next).powerLevel = cur.powerLevel - 1;
+          this.queue[tail++] = next;
+        }
+      }
+    }
+    LayoutBenchmark.check(tail, this.masks.length);
+    return System.nanoTime() - start;
+  }
+
+  // makes sure a flood reached every tile, so the JIT cannot skip the work
+  static void check(int reached, int tiles) {
+    if (reached != tiles) {
+      throw new IllegalStateException("Flood reached " + reached + " of " + tiles + " tiles");
+    }
+  }
+}
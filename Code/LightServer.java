@@ -0,0 +1,489 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import javalib.worldimages.Posn;
+
+// Hosts many headless LightEmAll games in one JVM and serves them over a
+// line-based protocol on a local socket. Every line is a command and gets
+// exactly one line back:
+//   NEW <width> <height> <seed>              -> SESSION <id>
+//   ROTATE <id> <col> <row> <LEFT|RIGHT>     -> OK
+//   ROUTE <id> <col> <row>                   -> OK | UNREACHABLE
+//   KEY <id> <keyName>                       -> OK
+//   TICK <id>                                -> POWERED <powered> <total>
+//   SEGMENTS <id>                            -> SEGMENTS <count> <largest>
+//   CLOSE <id>                               -> CLOSED
+//   STATS                                    -> SESSIONS <count>
+//   QUIT                                     (closes the connection)
+// Anything that cannot be handled is answered with ERROR <reason>.
+// When given a recording directory, every session is recorded to
+// session-<id>.rec there with a SessionRecorder, holding recordRing events in
+// memory at most.
+class LightServer {
+  static int DEFAULT_PORT = 4747;
+  // the biggest board a client may ask for, so that one NEW cannot exhaust
+  // the memory every other session shares
+  static int MAX_SIDE = 4096;
+  static int MAX_TILES = 1 << 20;
+
+  // every live session, by id
+  ConcurrentHashMap<Integer, GameSession> sessions;
+  AtomicInteger nextId;
+  // runs the sessions' mailboxes, a session only ever runs on one worker at a time
+  ExecutorService workers;
+  // one thread per client connection, blocked on socket reads
+  ExecutorService connections;
+  ServerSocket socket;
+  // where sessions are recorded, null to not record them
+  Path recordDir;
+  // the events each recording holds in memory before they are written out,
+  // a power of two
+  int recordRing;
+
+  LightServer(int workerCount) {
+    this.sessions = new ConcurrentHashMap<Integer, GameSession>();
+    this.nextId = new AtomicInteger(0);
+    this.workers = Executors.newFixedThreadPool(workerCount);
+    this.connections = Executors.newCachedThreadPool();
+    this.recordRing = SessionRecorder.RING_SIZE;
+  }
+
+  // Starts server mode: java LightServer [port] [workers] [recordDir] [recordRing]
+  public static void main(String[] args) throws IOException {
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+    int workerCount =
+        args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+    LightServer server = new LightServer(workerCount);
+    if (args.length > 2) {
+      server.recordDir = Paths.get(args[2]);
+    }
+    if (args.length > 3) {
+      server.recordRing = Integer.parseInt(args[3]);
+    }
+    server.listen(port);
+    System.out.println("LightEmAll server listening on port " + server.socket.getLocalPort());
+    server.serve();
+  }
+
+  // binds the server to the given port on the loopback interface (0 picks a free port)
+  void listen(int port) throws IOException {
+    this.socket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+  }
+
+  // accepts clients until the server socket is closed
+  void serve() {
+    while (!this.socket.isClosed()) {
+      try {
+        Socket client = this.socket.accept();
+        client.setTcpNoDelay(true);
+        this.connections.execute(new ServerConnection(this, client));
+      }
+      catch (IOException e) {
+        if (!this.socket.isClosed()) {
+          System.err.println("Failed to accept client: " + e.getMessage());
+        }
+      }
+    }
+  }
+
+  // Handles one protocol line and returns the reply line. Session commands are
+  // posted to that session's mailbox, and this waits for the session to answer.
+  String dispatch(String line) {
+    String[] words = line.trim().split("\\s+");
+    String command = words[0].toUpperCase();
+
+    try {
+      if (command.equals("NEW")) {
+        return this.newSession(words);
+      }
+      else if (command.equals("STATS")) {
+        return "SESSIONS " + this.sessions.size();
+      }
+      else if (words.length < 2) {
+        return "ERROR Unknown command: " + line.trim();
+      }
+
+      int id = Integer.parseInt(words[1]);
+      GameSession session = this.sessions.get(id);
+      if (session == null) {
+        return "ERROR No such session: " + id;
+      }
+      if (command.equals("CLOSE")) {
+        this.sessions.remove(id);
+      }
+      return session.post(words).get();
+    }
+    catch (NumberFormatException e) {
+      return "ERROR Not a number: " + e.getMessage();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return "ERROR Interrupted";
+    }
+    catch (ExecutionException e) {
+      return "ERROR " + e.getCause().getMessage();
+    }
+    catch (RuntimeException e) {
+      return "ERROR " + e;
+    }
+  }
+
+  // NEW <width> <height> <seed>
+  String newSession(String[] words) {
+    if (words.length != 4) {
+      return "ERROR Usage: NEW <width> <height> <seed>";
+    }
+    int width = Integer.parseInt(words[1]);
+    int height = Integer.parseInt(words[2]);
+    long seed = Long.parseLong(words[3]);
+    if (width < 1 || height < 1) {
+      return "ERROR Board must be at least 1x1";
+    }
+    if (width > MAX_SIDE || height > MAX_SIDE || (long) width * height > MAX_TILES) {
+      return "ERROR Board must be at most " + MAX_SIDE + " tiles a side and "
+          + MAX_TILES + " tiles in all";
+    }
+
+    int id = this.nextId.getAndIncrement();
+    LightEmAll world = new LightEmAll(width, height, new Random(seed));
+    if (this.recordDir != null) {
+      try {
+        world.recorder = new SessionRecorder(this.recordDir.resolve("session-" + id + ".rec"),
+            width, height, seed, this.recordRing, RecordingWriter.shared());
+      }
+      catch (IOException e) {
+        return "ERROR Cannot record session: " + e.getMessage();
+      }
+    }
+    this.sessions.put(id, new GameSession(id, world, this.workers));
+    return "SESSION " + id;
+  }
+
+  // stops accepting clients and lets the workers finish what they were given
+  void shutdown() throws IOException {
+    if (this.socket != null) {
+      this.socket.close();
+    }
+    this.connections.shutdownNow();
+    this.workers.shutdown();
+  }
+}
+
+// A single headless game. Commands are queued in a mailbox and drained by
+// whichever worker picks the session up, so a session never runs on two
+// threads at once and no thread is tied to an idle session.
+class GameSession implements Runnable {
+  int id;
+  LightEmAll world;
+  ExecutorService workers;
+  ConcurrentLinkedQueue<Message> mailbox;
+  // whether this session is already queued on (or running on) a worker
+  AtomicBoolean scheduled;
+
+  GameSession(int id, LightEmAll world, ExecutorService workers) {
+    this.id = id;
+    this.world = world;
+    this.workers = workers;
+    this.mailbox = new ConcurrentLinkedQueue<Message>();
+    this.scheduled = new AtomicBoolean(false);
+  }
+
+  // Queues the given command and returns the pending reply to it
+  CompletableFuture<String> post(String[] words) {
+    Message msg = new Message(words);
+    this.mailbox.add(msg);
+    if (this.scheduled.compareAndSet(false, true)) {
+      this.workers.execute(this);
+    }
+    return msg.reply;
+  }
+
+  // Drains the mailbox, then gives the worker back
+  public void run() {
+    Message msg = this.mailbox.poll();
+    while (msg != null) {
+      try {
+        msg.reply.complete(this.handle(msg.words));
+      }
+      catch (RuntimeException e) {
+        msg.reply.complete("ERROR " + e);
+      }
+      msg = this.mailbox.poll();
+    }
+    this.scheduled.set(false);
+
+    // a message may have arrived after the last poll but before we let go
+    if (!this.mailbox.isEmpty() && this.scheduled.compareAndSet(false, true)) {
+      this.workers.execute(this);
+    }
+  }
+
+  // Applies one command to this session's world and returns the reply line
+  String handle(String[] words) {
+    String command = words[0].toUpperCase();
+
+    if (command.equals("ROTATE") && words.length == 5) {
+      int col = Integer.parseInt(words[2]);
+      int row = Integer.parseInt(words[3]);
+      if (col < 0 || col >= this.world.width || row < 0 || row >= this.world.height) {
+        return "ERROR No tile at " + col + " " + row;
+      }
+      String button = words[4].equalsIgnoreCase("RIGHT") ? "RightButton" : "LeftButton";
+      this.world.onMouseClicked(
+          new Posn(col * GamePiece.TILE_SIZE + GamePiece.TILE_SIZE / 2,
+              row * GamePiece.TILE_SIZE + GamePiece.TILE_SIZE / 2),
+          button);
+      return "OK";
+    }
+    else if (command.equals("ROUTE") && words.length == 4) {
+      int col = Integer.parseInt(words[2]);
+      int row = Integer.parseInt(words[3]);
+      if (col < 0 || col >= this.world.width || row < 0 || row >= this.world.height) {
+        return "ERROR No tile at " + col + " " + row;
+      }
+      return this.world.routeStationTo(this.world.tileAt(col, row)) ? "OK" : "UNREACHABLE";
+    }
+    else if (command.equals("KEY") && words.length == 3) {
+      this.world.onKeyEvent(words[2]);
+      return "OK";
+    }
+    else if (command.equals("TICK") && words.length == 2) {
+      this.world.onTick();
+      int powered = 0;
+      for (GamePiece gp : this.world.nodes) {
+        if (gp.powerLevel > 0) {
+          powered++;
+        }
+      }
+      return "POWERED " + powered + " " + this.world.nodes.size();
+    }
+    else if (command.equals("SEGMENTS") && words.length == 2) {
+      return "SEGMENTS " + this.world.tracker.segmentCount() + " "
+          + this.world.tracker.largestSegment();
+    }
+    else if (command.equals("CLOSE") && words.length == 2) {
+      if (this.world.recorder != null) {
+        // the recording is finished in the background, not on this worker
+        this.world.recorder.close().whenComplete(new RecordingFailureLog(this.id));
+      }
+      return "CLOSED";
+    }
+    else {
+      return "ERROR Unknown command: " + String.join(" ", words);
+    }
+  }
+}
+
+// Reports a session's recording that could not be written
+class RecordingFailureLog implements BiConsumer<Void, Throwable> {
+  int id;
+
+  RecordingFailureLog(int id) {
+    this.id = id;
+  }
+
+  public void accept(Void done, Throwable failure) {
+    if (failure != null) {
+      System.err.println("Recording of session " + this.id + " failed: " + failure.getMessage());
+    }
+  }
+}
+
+// A command waiting in a session's mailbox together with its reply
+class Message {
+  String[] words;
+  CompletableFuture<String> reply;
+
+  Message(String[] words) {
+    this.words = words;
+    this.reply = new CompletableFuture<String>();
+  }
+}
+
+// Reads commands from one client and writes back one reply per command
+class ServerConnection implements Runnable {
+  LightServer server;
+  Socket client;
+
+  ServerConnection(LightServer server, Socket client) {
+    this.server = server;
+    this.client = client;
+  }
+
+  public void run() {
+    try (Socket s = this.client;
+        BufferedReader in = new BufferedReader(
+            new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+        PrintWriter out = new PrintWriter(
+            new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+      String line = in.readLine();
+      while (line != null && !line.trim().equalsIgnoreCase("QUIT")) {
+        if (!line.trim().isEmpty()) {
+          out.print(this.server.dispatch(line));
+          out.print('\n');
+          out.flush();
+        }
+        line = in.readLine();
+      }
+    }
+    catch (IOException e) {
+      // the client went away, its sessions stay until closed
+    }
+  }
+}
+
+// Synthetic clients for a running LightServer. Each client thread owns one
+// connection and an equal share of the sessions, and plays random rotations
+// on them round-robin, with a TICK after every few moves.
+//   java LoadGenerator [port] [sessions] [clients] [movesPerSession] [size]
+class LoadGenerator implements Runnable {
+  static int TICK_EVERY = 8;
+
+  int port;
+  int firstSeed;
+  int sessionCount;
+  int moves;
+  int size;
+  // round-trip time of every ROTATE this client sent, in nanoseconds
+  long[] latencies;
+  int completed;
+  // how many of this client's sessions the server actually opened
+  int opened;
+  String failure;
+
+  LoadGenerator(int port, int firstSeed, int sessionCount, int moves, int size) {
+    this.port = port;
+    this.firstSeed = firstSeed;
+    this.sessionCount = sessionCount;
+    this.moves = moves;
+    this.size = size;
+    this.latencies = new long[sessionCount * moves];
+  }
+
+  public static void main(String[] args) throws Exception {
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : LightServer.DEFAULT_PORT;
+    int sessions = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+    int clients = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+    int moves = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+    int size = args.length > 4 ? Integer.parseInt(args[4]) : 8;
+
+    ArrayList<LoadGenerator> generators = new ArrayList<LoadGenerator>();
+    ArrayList<Thread> threads = new ArrayList<Thread>();
+    int seed = 0;
+    for (int i = 0; i < clients; i++) {
+      int share = sessions / clients + (i < sessions % clients ? 1 : 0);
+      LoadGenerator gen = new LoadGenerator(port, seed, share, moves, size);
+      seed += share;
+      generators.add(gen);
+      threads.add(new Thread(gen, "load-" + i));
+    }
+
+    long start = System.nanoTime();
+    for (Thread t : threads) {
+      t.start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+
+    int total = 0;
+    int hosted = 0;
+    for (LoadGenerator gen : generators) {
+      if (gen.failure != null) {
+        System.err.println("Client failed: " + gen.failure);
+      }
+      total += gen.completed;
+      hosted += gen.opened;
+    }
+    long[] all = new long[total];
+    int at = 0;
+    for (LoadGenerator gen : generators) {
+      System.arraycopy(gen.latencies, 0, all, at, gen.completed);
+      at += gen.completed;
+    }
+    Arrays.sort(all);
+
+    System.out.println("sessions hosted: " + hosted);
+    System.out.printf("moves/sec: %.0f%n", total / seconds);
+    System.out.printf("p99 move latency: %.3f ms%n",
+        all.length == 0 ? 0.0 : all[(int) Math.min(all.length - 1, all.length * 0.99)] / 1e6);
+  }
+
+  public void run() {
+    Random rand = new Random(this.firstSeed);
+    try (Socket s = new Socket(InetAddress.getLoopbackAddress(), this.port);
+        BufferedReader in = new BufferedReader(
+            new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+        PrintWriter out = new PrintWriter(
+            new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+      s.setTcpNoDelay(true);
+      int[] ids = new int[this.sessionCount];
+      for (int i = 0; i < this.sessionCount; i++) {
+        String reply = this.send(in, out,
+            "NEW " + this.size + " " + this.size + " " + (this.firstSeed + i));
+        ids[i] = Integer.parseInt(reply.substring("SESSION ".length()));
+        this.opened++;
+      }
+
+      for (int m = 0; m < this.moves; m++) {
+        for (int id : ids) {
+          String move = "ROTATE " + id + " " + rand.nextInt(this.size) + " "
+              + rand.nextInt(this.size) + (rand.nextBoolean() ? " LEFT" : " RIGHT");
+          long before = System.nanoTime();
+          this.send(in, out, move);
+          this.latencies[this.completed] = System.nanoTime() - before;
+          this.completed++;
+          if (m % TICK_EVERY == TICK_EVERY - 1) {
+            this.send(in, out, "TICK " + id);
+          }
+        }
+      }
+
+      for (int id : ids) {
+        this.send(in, out, "CLOSE " + id);
+      }
+      out.print("QUIT\n");
+      out.flush();
+    }
+    catch (IOException e) {
+      this.failure = e.toString();
+    }
+  }
+
+  // sends one command and waits for its reply
+  String send(BufferedReader in, PrintWriter out, String command) throws IOException {
+    out.print(command);
+    out.print('\n');
+    out.flush();
+    String reply = in.readLine();
+    if (reply == null) {
+      throw new IOException("Server closed the connection");
+    }
+    if (reply.startsWith("ERROR")) {
+      throw new IOException(command + " -> " + reply);
+    }
+    return reply;
+  }
+}
@@ -3,14 +3,20 @@ import javalib.impworld.*;
 import java.awt.Color;
 import javalib.worldimages.*;
 import java.util.*;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
 
 // Represents entire game state of LightEmAll
 class LightEmAll extends World {
   // a list of columns of GamePieces,
   // i.e., represents the board in column-major order
   ArrayList<ArrayList<GamePiece>> board;
-  // a list of all nodes
+  // a list of all nodes, in the order given by layout
   ArrayList<GamePiece> nodes;
+  // where each tile lives in nodes and in every array indexed like it
+  TileLayout layout;
   // a list of edges of the minimum spanning tree
   ArrayList<Edge> mst;
   // the width and height of the board
@@ -22,51 +28,100 @@ class LightEmAll extends World {
   int powerCol;
   int radius;
   Random rand;
+  // the wire segments currently on the board
+  ComponentTracker tracker;
+  // scratch space for recomputePower and farthestAway: a queue or stack of
+  // positions in nodes, the next side to try from each, and search depths
+  int[] powerQueue;
+  int[] powerSides;
+  int[] searchDepth;
+  // the paths the station can take over the current wiring
+  RouteTree routes;
+  // draws the board as a single image, null to place one image per tile instead
+  RasterRenderer raster;
+  // where every move and tick is recorded, null when not recording
+  SessionRecorder recorder;
+
+  // boards with at least this many tiles are drawn with a RasterRenderer,
+  // made the first time the board is drawn so that boards never shown cost nothing
+  static int RASTER_MIN_TILES = 2500;
+  // boards with at least this many tiles are scrambled in bulk by a MaskScrambler;
+  // smaller ones keep the original scramble, so their seeds give the same puzzles.
+  // The bulk scramble turns each tile 0 to 3 times uniformly, the original 0, 1
+  // or 2 times with chances 1/3, 4/9 and 2/9, so the two draw different puzzles.
+  // Either way scrambling is a sliver of generating a board (a few ms of the
+  // 0.8 s a 256x256 board takes), so game boards gain little from it.
+  static int BULK_SCRAMBLE_MIN_TILES = 65536;
+  // mixed into a pack puzzle's seed for its later boards, so that pressing r
+  // does not replay the stream the puzzle was generated from
+  static long PACK_RESEED = 0x9E3779B97F4A7C15L;
 
   LightEmAll(int w, int h) {
+    this(w, h, new Random());
+  }
+
+  LightEmAll(int w, int h, Random rand) {
+    this(w, h, rand, new ColumnMajorLayout(w, h));
+  }
+
+  LightEmAll(int w, int h, Random rand, TileLayout layout) {
     this.width = w;
     this.height = h;
     this.powerCol = 0;
     this.powerRow = 0;
-    this.rand = new Random();
+    this.rand = rand;
+    this.layout = layout;
     this.board = this.makeBoard(this.width, this.height);
     this.nodes = this.makeNodeList();
     this.connectGamePieces();
     this.mst = this.kruskals();
     this.makeMSTBoard();
     this.findRadius();
-    this.rotateRandomly();
+    this.scramble();
     this.createPower();
+    this.tracker = new ComponentTracker(this.layout, this.width, this.height, this.nodes);
+    this.routes = new RouteTree(this.layout, this.width, this.height);
   }
 
-  LightEmAll(int w, int h, Random rand) {
-    this.width = w;
-    this.height = h;
-    this.powerCol = 0;
-    this.powerRow = 0;
-    this.rand = rand;
+  // Opens puzzle n of the given pack instead of generating a new one
+  LightEmAll(PuzzlePack pack, int n) {
+    this.width = pack.width(n);
+    this.height = pack.height(n);
+    this.powerCol = pack.powerCol(n);
+    this.powerRow = pack.powerRow(n);
+    this.rand = new Random(pack.seed(n) ^ PACK_RESEED);
+    this.layout = new ColumnMajorLayout(this.width, this.height);
     this.board = this.makeBoard(this.width, this.height);
     this.nodes = this.makeNodeList();
     this.connectGamePieces();
-    this.mst = this.kruskals();
-    this.makeMSTBoard();
-    this.findRadius();
-    this.rotateRandomly();
+    this.mst = this.packedMST(pack, n);
+    pack.loadInto(n, this.nodes);
+    this.radius = pack.radius(n);
     this.createPower();
+    this.tracker = new ComponentTracker(this.layout, this.width, this.height, this.nodes);
+    this.routes = new RouteTree(this.layout, this.width, this.height);
   }
 
 
 
   // Initializes the board to implement a fractal-like pattern by recursively breaking up
   // the board into base cases
+  // (the pieces are created in this board's layout order, so that neighbors in
+  // the layout are also neighbors in memory)
   ArrayList<ArrayList<GamePiece>> makeBoard(int width, int height) {
     ArrayList<ArrayList<GamePiece>> result = new ArrayList<ArrayList<GamePiece>>();
     ArrayList<GamePiece> curCol = new ArrayList<GamePiece>();
+    GamePiece[] pieces = new GamePiece[width * height];
+
+    for (int k = 0; k < pieces.length; k++) {
+      pieces[k] =
+          new GamePiece(false, false, false, false, this.layout.row(k), this.layout.col(k));
+    }
 
     for (int i = 0; i < width; i++) {
       curCol = new ArrayList<GamePiece>();
       for (int j = 0; j < height; j++) {
-        curCol.add(new GamePiece(false, false, false, false, j, i));
+        curCol.add(pieces[this.layout.index(i, j)]);
       }
       result.add(curCol);
     }
@@ -74,6 +129,21 @@ class LightEmAll extends World {
     return result;
   }
 
+  // Rebuilds the spanning tree of puzzle n from the solved masks in the given pack
+  ArrayList<Edge> packedMST(PuzzlePack pack, int n) {
+    ArrayList<Edge> result = new ArrayList<Edge>();
+    for (GamePiece gp : this.nodes) {
+      int solved = pack.tile(n, gp.col, gp.row) >> 4;
+      if ((solved & GamePiece.RIGHT) != 0) {
+        result.add(new Edge(gp, gp.neighbors.get("Right"), 0));
+      }
+      if ((solved & GamePiece.BOTTOM) != 0) {
+        result.add(new Edge(gp, gp.neighbors.get("Bottom"), 0));
+      }
+    }
+    return result;
+  }
+
   // Applies Kruskal's algorithm to find the minimum spanning tree of this board
   ArrayList<Edge> kruskals() {
     ArrayList<Edge> sortedEdges = this.makeEdges();
@@ -97,13 +167,17 @@ class LightEmAll extends World {
 
   // Returns the GamePiece that is the given GamePiece's Kruskal representative in the
   // given Hashmap
+  // (iteratively, halving the path on the way so chains stay short on big boards;
+  // this changes no representative, so the spanning tree is the same)
   GamePiece findFinalRep(GamePiece piece, HashMap<GamePiece, GamePiece> reps) {
-    if (reps.get(piece) == piece) {
-      return piece;
-    }
-    else {
-      return this.findFinalRep(reps.get(piece), reps);
+    GamePiece up = reps.get(piece);
+    while (up != piece) {
+      GamePiece upUp = reps.get(up);
+      reps.put(piece, upUp);
+      piece = upUp;
+      up = reps.get(piece);
     }
+    return piece;
   }
 
   //Returns a list of edges connecting all GamePieces to their neighbors,
@@ -114,8 +188,8 @@ class LightEmAll extends World {
     for (int i = 0; i < width - 1; i++) {
       for (int j = 0; j < height; j++) {
         result.add(
-            new Edge(this.board.get(i).get(j),
-                this.board.get(i + 1).get(j),
+            new Edge(this.tileAt(i, j),
+                this.tileAt(i + 1, j),
                 this.rand.nextInt(250)));
       } 
     }
@@ -123,8 +197,8 @@ class LightEmAll extends World {
     for (int i = 0; i < width; i++) {
       for (int j = 0; j < height - 1; j++) {
         result.add(
-            new Edge(this.board.get(i).get(j),
-                this.board.get(i).get(j + 1),
+            new Edge(this.tileAt(i, j),
+                this.tileAt(i, j + 1),
                 this.rand.nextInt(250) + 100));
       }
     }
@@ -160,25 +234,49 @@ class LightEmAll extends World {
     }
   }
 
+  // Scrambles the board in bulk if it is big enough, tile by tile otherwise
+  void scramble() {
+    if (this.width * this.height >= BULK_SCRAMBLE_MIN_TILES) {
+      MaskScrambler.scramble(this.nodes, this.height, this.rand);
+    }
+    else {
+      this.rotateRandomly();
+    }
+  }
+
   //Rotates all the GamePieces a random number of times
+  //(in column-major order whatever the layout, so a seed always gives the same puzzle;
+  // the bound is drawn again on every pass, hence 0 to 2 turns, skewed toward 1)
   void rotateRandomly() {
-    for (GamePiece gp : this.nodes) {
-      for (int i = 0; i < this.rand.nextInt(3); i++) {
-        gp.rotateLeft();
+    for (int col = 0; col < this.width; col++) {
+      for (int row = 0; row < this.height; row++) {
+        GamePiece gp = this.tileAt(col, row);
+        for (int i = 0; i < this.rand.nextInt(3); i++) {
+          gp.rotateLeft();
+        }
       }
     }
   }
 
 
-  // Creates a 1D array-list of all GamePieces on the board
+  // Creates a 1D array-list of all GamePieces on the board, in layout order
   ArrayList<GamePiece> makeNodeList() {
-    ArrayList<GamePiece> result = new ArrayList<GamePiece>();
+    GamePiece[] result = new GamePiece[this.width * this.height];
     for (int i = 0; i < this.width; i++) {
       for (int j = 0; j < this.height; j++) {
-        result.add(this.board.get(i).get(j));
+        result[this.layout.index(i, j)] = this.board.get(i).get(j);
       }
     }
-    return result;
+    return new ArrayList<GamePiece>(Arrays.asList(result));
+  }
+
+  // Returns the GamePiece at the given column and row
+  // (checked here, as a layout would map a position off the board to some other tile)
+  GamePiece tileAt(int col, int row) {
+    if (col < 0 || col >= this.width || row < 0 || row >= this.height) {
+      throw new IndexOutOfBoundsException("No tile at " + col + ", " + row);
+    }
+    return this.nodes.get(this.layout.index(col, row));
   }
 
   // Connects GamePieces to each other so they can access their neighbors
@@ -190,14 +288,14 @@ class LightEmAll extends World {
 
   // puts a power station on the GamePiece with the coordinate (powerCol, powerRow)
   void createPower() {
-    GamePiece powerSt = this.board.get(powerCol).get(powerRow);
+    GamePiece powerSt = this.tileAt(this.powerCol, this.powerRow);
     powerSt.makePowerSt();
   }
 
   // Calls the breadth-first search on the power station and then the farthest
   // node from that power station to find the total diameter of the graph
   void findRadius() {
-    SearchResult farthestFromPower = this.farthestAway(this.board.get(powerCol).get(powerRow));
+    SearchResult farthestFromPower = this.farthestAway(this.tileAt(this.powerCol, this.powerRow));
     SearchResult farthestFromfarthest = this.farthestAway(farthestFromPower.node);
 
     int diameter = farthestFromfarthest.depth;
@@ -207,47 +305,48 @@ class LightEmAll extends World {
 
   //Performs breadth-first search from the given starting node
   // and resturns the farthest node from it and its depth.
+  // (the last tile the search reaches, over positions in nodes)
   SearchResult farthestAway(GamePiece start) {
-    ArrayList<GamePiece> visited = new ArrayList<GamePiece>();
-    ArrayList<Integer> depths = new ArrayList<Integer>();
-
-    LinkedList<SearchResult> worklist = new LinkedList<SearchResult>();
-
-    ArrayList<String> sides = 
-        new ArrayList<String>(Arrays.asList("Top", "Right", "Bottom", "Left"));
-
-    worklist.add(new SearchResult(start, 0));
-    visited.add(start);
-    depths.add(0);
-
-    while (! worklist.isEmpty()) {
-      SearchResult current = worklist.remove();
-      GamePiece curNode = current.node;
-      int curDepth = current.depth;
-      ArrayList<GamePiece> connectedTiles = new ArrayList<GamePiece>();
-      for (String side : sides) {
-        if (curNode.isConnectedOnSide(side)) {
-
-          connectedTiles.add(curNode.neighbors.get(side));
-        }
-      }
-
-      for (GamePiece gp : connectedTiles) {
-        if (! visited.contains(gp)) {
-          worklist.add(new SearchResult(gp, curDepth + 1));
-          visited.add(0, gp);
-          depths.add(0, curDepth + 1);
+    this.makeScratch();
+    Arrays.fill(this.searchDepth, -1);
+    int head = 0;
+    int tail = 0;
+    int first = this.layout.index(start.col, start.row);
+    this.searchDepth[first] = 0;
+    this.powerQueue[tail++] = first;
+
+    while (head < tail) {
+      int cur = this.powerQueue[head++];
+      for (int side = GamePiece.TOP; side <= GamePiece.LEFT; side <<= 1) {
+        int next = this.wiredNeighbor(cur, side);
+        if (next >= 0 && this.searchDepth[next] < 0) {
+          this.searchDepth[next] = this.searchDepth[cur] + 1;
+          this.powerQueue[tail++] = next;
         }
       }
     }
 
-    return new SearchResult(visited.get(0), depths.get(0));
+    int last = this.powerQueue[tail - 1];
+    return new SearchResult(this.nodes.get(last), this.searchDepth[last]);
+  }
+
+  // Draws this board from now on as a single raster image
+  void useRasterRenderer() {
+    this.raster = new RasterRenderer(this.width, this.height);
   }
 
   // Returns an image representation of the World state
   public WorldScene makeScene() {
     WorldScene scene =
         new WorldScene(this.width * GamePiece.TILE_SIZE, this.height * GamePiece.TILE_SIZE);
+    if (this.raster == null && this.width * this.height >= RASTER_MIN_TILES) {
+      this.useRasterRenderer();
+    }
+    if (this.raster != null) {
+      scene.placeImageXY(this.raster.render(this.nodes, this.radius),
+          this.width * GamePiece.TILE_SIZE / 2, this.height * GamePiece.TILE_SIZE / 2);
+      return scene;
+    }
     for (GamePiece gp : this.nodes) {
       scene.placeImageXY(gp.drawTile(this.radius),
           (gp.col * GamePiece.TILE_SIZE) + GamePiece.TILE_SIZE / 2,
@@ -268,29 +367,75 @@ class LightEmAll extends World {
   }
 
   // Handles mouse behavior, rotating the tile the mouse is over either left or right
-  // depending on which button clicked
+  // depending on which button clicked, or routing the station to it on a middle click
   public void onMouseClicked(Posn location, String button) {
+    GamePiece tile = this.getTileAt(location);
     if (button.equals("LeftButton")) {
-      this.getTileAt(location).rotateLeft();
+      tile.rotateLeft();
+      this.tracker.rotated(tile);
+      this.routes.rotated(tile);
+      this.record(SessionRecorder.ROTATE_LEFT, tile.col * this.height + tile.row);
     }
     else if (button.equals("RightButton")) {
-      this.getTileAt(location).rotateRight();
+      tile.rotateRight();
+      this.tracker.rotated(tile);
+      this.routes.rotated(tile);
+      this.record(SessionRecorder.ROTATE_RIGHT, tile.col * this.height + tile.row);
+    }
+    else if (button.equals("MiddleButton")) {
+      this.routeStationTo(tile);
     }
   }
 
+  // Hands the given event to the recorder, if there is one
+  void record(int kind, int arg) {
+    if (this.recorder != null) {
+      this.recorder.record(kind, arg);
+    }
+  }
+
+  // The tiles the station would pass through on its way to the given tile
+  // along the current wiring, starting at the station, or an empty list if
+  // the tile is not wired to the station
+  ArrayList<GamePiece> routeTo(GamePiece target) {
+    int station = this.layout.index(this.powerCol, this.powerRow);
+    if (!this.routes.valid || this.routes.root != station) {
+      this.routes.build(this.nodes, station);
+    }
+    return this.routes.path(this.nodes, this.layout.index(target.col, target.row));
+  }
+
+  // Moves the station straight to the given tile if it is wired to the station,
+  // and powers the board once from there. Returns whether the station moved.
+  // The attempt is recorded either way, from a click or from the server.
+  boolean routeStationTo(GamePiece target) {
+    this.record(SessionRecorder.ROUTE, target.col * this.height + target.row);
+    if (this.routeTo(target).isEmpty()) {
+      return false;
+    }
+    this.tileAt(this.powerCol, this.powerRow).removeStation();
+    this.routes.reroot(this.layout.index(target.col, target.row));
+    this.powerCol = target.col;
+    this.powerRow = target.row;
+    this.createPower();
+    this.recomputePower();
+    return true;
+  }
+
   // Returns the tile on the board at which the given Posn lies
   GamePiece getTileAt(Posn location) {
     Posn tileLoc =
         new Posn(
             Math.floorDiv(location.x, GamePiece.TILE_SIZE),
             Math.floorDiv(location.y, GamePiece.TILE_SIZE));
-    return this.board.get(tileLoc.x).get(tileLoc.y);
+    return this.tileAt(tileLoc.x, tileLoc.y);
   }
 
   // handles behavior that occurs constantly
   // so powers every tile that is within range of the power station
   public void onTick() {
     boolean gameWon = true;
+    this.record(SessionRecorder.TICK, 0);
 
     for (GamePiece gp : this.nodes) {
       if (gp.powerLevel == 0) {
@@ -303,16 +448,81 @@ class LightEmAll extends World {
       this.endOfWorld("You Win!");
     }
     else {
-      for (GamePiece gp : this.nodes) {
-        gp.unpower();
-      }
-      this.board.get(powerCol).get(powerRow).powerTiles(this.radius);
+      this.recomputePower();
     } 
   }
 
+  // Unpowers every tile, then powers tiles outward from the station along
+  // connected wires, each one a level below the tile it was reached from.
+  // Visits tiles in exactly the order GamePiece.powerTiles recurses, so the
+  // same tiles light up, but keeps its own stack so that no recursion as deep
+  // as the radius is needed.
+  void recomputePower() {
+    this.makeScratch();
+    for (GamePiece gp : this.nodes) {
+      gp.unpower();
+    }
+
+    int top = 0;
+    int start = this.layout.index(this.powerCol, this.powerRow);
+    this.nodes.get(start).powerLevel = this.radius;
+    if (this.radius != 0) {
+      this.powerQueue[0] = start;
+      this.powerSides[0] = GamePiece.TOP;
+      top = 1;
+    }
+
+    while (top > 0) {
+      int cur = this.powerQueue[top - 1];
+      int side = this.powerSides[top - 1];
+      if (side > GamePiece.LEFT) {
+        top--;
+        continue;
+      }
+      this.powerSides[top - 1] = side << 1;
+
+      int next = this.wiredNeighbor(cur, side);
+      if (next >= 0 && this.nodes.get(next).powerLevel == 0) {
+        int level = this.nodes.get(cur).powerLevel - 1;
+        this.nodes.get(next).powerLevel = level;
+        if (level != 0) {
+          this.powerQueue[top] = next;
+          this.powerSides[top] = GamePiece.TOP;
+          top++;
+        }
+      }
+    }
+  }
+
+  // The position of the tile joined to the tile at the given position by a
+  // wire on the given side, with a wire back, or -1 if there is none
+  int wiredNeighbor(int idx, int side) {
+    if ((this.nodes.get(idx).mask() & side) == 0) {
+      return -1;
+    }
+    int next = this.layout.neighbor(idx, side);
+    if (next < 0 || (this.nodes.get(next).mask() & GamePiece.opposite(side)) == 0) {
+      return -1;
+    }
+    return next;
+  }
+
+  // Makes the scratch arrays for searches over this board, once
+  void makeScratch() {
+    if (this.powerQueue == null) {
+      this.powerQueue = new int[this.nodes.size()];
+      this.powerSides = new int[this.nodes.size()];
+      this.searchDepth = new int[this.nodes.size()];
+    }
+  }
+
   // Moves the power station in the direction of the arrow key pressed
   public void onKeyEvent(String keyName) {
-    GamePiece powerSt = this.board.get(powerCol).get(powerRow);
+    int key = SessionRecorder.keyCode(keyName);
+    if (key >= 0) {
+      this.record(SessionRecorder.KEY, key);
+    }
+    GamePiece powerSt = this.tileAt(this.powerCol, this.powerRow);
     powerSt.removeStation();
 
     if (keyName.equals("up")) {
@@ -342,7 +552,13 @@ class LightEmAll extends World {
       this.mst = this.kruskals();
       this.makeMSTBoard();
       this.findRadius();
-      this.rotateRandomly();
+      this.scramble();
+      this.tracker.rebuild(this.nodes);
+      this.routes.valid = false;
+    }
+    int station = this.layout.index(this.powerCol, this.powerRow);
+    if (this.routes.valid && this.routes.root != station) {
+      this.routes.reroot(station);
     }
     this.createPower();
   }
@@ -598,4 +814,764 @@ class ExamplesLightWorld {
     reset();
   }
 
+  void testSessionHandle(Tester t) {
+    reset();
+    GameSession session = new GameSession(0, this.world, null);
+    GamePiece tile = this.world.board.get(0).get(0);
+    t.checkExpect(session.handle("ROTATE 0 0 0 LEFT".split(" ")), "OK");
+    t.checkExpect(tile.right, true);
+    t.checkExpect(session.handle("ROTATE 0 0 0 RIGHT".split(" ")), "OK");
+    t.checkExpect(tile.bottom, true);
+    t.checkExpect(session.handle("ROTATE 0 9 9 LEFT".split(" ")), "ERROR No tile at 9 9");
+    t.checkExpect(session.handle("TICK 0".split(" ")).startsWith("POWERED "), true);
+    t.checkExpect(session.handle("SEGMENTS 0".split(" ")),
+        "SEGMENTS " + this.world.tracker.segmentCount() + " "
+            + this.world.tracker.largestSegment());
+    t.checkExpect(session.handle("JUMP 0".split(" ")), "ERROR Unknown command: JUMP 0");
+    reset();
+  }
+
+  void testServerDispatch(Tester t) {
+    LightServer server = new LightServer(2);
+    t.checkExpect(server.dispatch("NEW 5 6 5"), "SESSION 0");
+    t.checkExpect(server.dispatch("STATS"), "SESSIONS 1");
+    t.checkExpect(server.dispatch("ROTATE 0 0 0 LEFT"), "OK");
+    t.checkExpect(server.sessions.get(0).world.board.get(0).get(0).right, true);
+    t.checkExpect(server.dispatch("KEY 0 up"), "OK");
+    t.checkExpect(server.dispatch("ROUTE 0 0 0"), "OK");
+    t.checkExpect(server.dispatch("ROUTE 0 9 0"), "ERROR No tile at 9 0");
+    t.checkExpect(server.dispatch("ROTATE 3 0 0 LEFT"), "ERROR No such session: 3");
+    t.checkExpect(server.dispatch("NEW 5"), "ERROR Usage: NEW <width> <height> <seed>");
+    t.checkExpect(server.dispatch("NEW 70000 70000 1"),
+        "ERROR Board must be at most 4096 tiles a side and 1048576 tiles in all");
+    t.checkExpect(server.dispatch("NEW 2048 2048 1"),
+        "ERROR Board must be at most 4096 tiles a side and 1048576 tiles in all");
+    t.checkExpect(server.dispatch("STATS"), "SESSIONS 1");
+    t.checkExpect(server.dispatch("CLOSE 0"), "CLOSED");
+    t.checkExpect(server.dispatch("STATS"), "SESSIONS 0");
+    server.workers.shutdown();
+  }
+
+  void testMask(Tester t) {
+    reset();
+    t.checkExpect(gp.mask(), 15);
+    t.checkExpect(gp2.mask(), GamePiece.TOP);
+    t.checkExpect(gp3.mask(), 0);
+    gp2.rotateRight();
+    t.checkExpect(gp2.mask(), GamePiece.RIGHT);
+    reset();
+  }
+
+  void testComponentTracker(Tester t) {
+    reset();
+    ComponentTracker tracker = new ComponentTracker(new ColumnMajorLayout(1, 3), 1, 3, column);
+    t.checkExpect(tracker.segmentCount(), 2);
+    t.checkExpect(tracker.largestSegment(), 2);
+    gp2.rotateRight();
+    tracker.rotated(gp2);
+    t.checkExpect(tracker.segmentCount(), 3);
+    t.checkExpect(tracker.largestSegment(), 1);
+    gp2.rotateLeft();
+    gp2.fractalConnect("Bottom");
+    gp3.fractalConnect("Top");
+    tracker.rotated(gp3);
+    tracker.rotated(gp2);
+    t.checkExpect(tracker.segmentCount(), 1);
+    t.checkExpect(tracker.largestSegment(), 3);
+    reset();
+  }
+
+  void testTrackerFollowsClicks(Tester t) {
+    reset();
+    for (int i = 0; i < 40; i++) {
+      Posn psn = new Posn((i * 7 % 5) * GamePiece.TILE_SIZE, (i * 3 % 6) * GamePiece.TILE_SIZE);
+      this.world.onMouseClicked(psn, i % 3 == 0 ? "RightButton" : "LeftButton");
+      ComponentTracker fresh = new ComponentTracker(this.world.layout, 5, 6, this.world.nodes);
+      t.checkExpect(this.world.tracker.segmentCount(), fresh.segmentCount());
+      t.checkExpect(this.world.tracker.largestSegment(), fresh.largestSegment());
+    }
+    reset();
+  }
+
+  void testPowerBand(Tester t) {
+    reset();
+    t.checkExpect(gp.powerBand(8), 0);
+    gp.powerLevel = 1;
+    t.checkExpect(gp.powerBand(8), 1);
+    gp.powerLevel = 2;
+    t.checkExpect(gp.powerBand(8), 2);
+    gp.powerLevel = 5;
+    t.checkExpect(gp.powerBand(8), 3);
+    gp.powerLevel = 8;
+    t.checkExpect(gp.powerBand(8), 4);
+    t.checkExpect(gp.drawTile(8), gp.drawInBand(4));
+    reset();
+  }
+
+  void testSetMask(Tester t) {
+    reset();
+    gp3.setMask(GamePiece.LEFT | GamePiece.BOTTOM);
+    t.checkExpect(gp3.left, true);
+    t.checkExpect(gp3.bottom, true);
+    t.checkExpect(gp3.top, false);
+    t.checkExpect(gp3.mask(), GamePiece.LEFT | GamePiece.BOTTOM);
+    reset();
+  }
+
+  void testRasterRenderer(Tester t) {
+    reset();
+    RasterRenderer raster = new RasterRenderer(5, 6);
+    this.world.onTick();
+    raster.render(this.world.nodes, this.world.radius);
+    int stride = 5 * GamePiece.TILE_SIZE;
+    GamePiece tile = this.world.board.get(2).get(3);
+    int[] sprite = raster.sprites[RasterRenderer.spriteIndex(tile, this.world.radius)];
+    int at = 3 * GamePiece.TILE_SIZE * stride + 2 * GamePiece.TILE_SIZE;
+    t.checkExpect(raster.pixels[at], sprite[0]);
+    t.checkExpect(raster.pixels[at + 10 * stride + 20], sprite[10 * GamePiece.TILE_SIZE + 20]);
+    int[] blank = raster.sprites[RasterRenderer.spriteIndex(gp3, 8)];
+    t.checkExpect(blank[blank.length - 1], Color.black.getRGB());
+    t.checkExpect(blank[GamePiece.TILE_SIZE * 10 + 10], Color.DARK_GRAY.getRGB());
+    t.checkExpect(raster.drawn[2 * 6 + 3], RasterRenderer.spriteIndex(tile, this.world.radius));
+    reset();
+  }
+
+  void testLazyRasterRenderer(Tester t) {
+    LightEmAll big = new LightEmAll(50, 50, new Random(28));
+    t.checkExpect(big.raster, null);
+    big.makeScene();
+    t.checkExpect(big.raster == null, false);
+    t.checkExpect(big.raster.sprites, new RasterRenderer(5, 6).sprites);
+    t.checkExpect(big.raster.sprites == RasterRenderer.spritesFor(GamePiece.TILE_SIZE), true);
+    reset();
+    this.world.makeScene();
+    t.checkExpect(this.world.raster, null);
+  }
+
+  void testPuzzlePack(Tester t) throws IOException {
+    reset();
+    Path file = Files.createTempFile("lightemall", ".pack");
+    file.toFile().deleteOnExit();
+    PuzzlePackWriter writer = new PuzzlePackWriter();
+    writer.add(7, 7, 1, 2);
+    writer.add(5, 6, 5, 3);
+    writer.add(5, 6, 9, 1);
+    writer.write(file);
+    PuzzlePack pack = new PuzzlePack(file);
+
+    t.checkExpect(pack.count, 3);
+    t.checkExpect(pack.find(5, 6, 0), 0);
+    t.checkExpect(pack.find(5, 6, 2), 1);
+    t.checkExpect(pack.find(7, 7, 0), 2);
+    t.checkExpect(pack.find(6, 6, 0), -1);
+    t.checkExpect(pack.seed(1), 5L);
+    t.checkExpect(pack.difficulty(1), 3);
+    t.checkExpect(pack.radius(1), this.world.radius);
+    t.checkExpect(pack.tile(1, 0, 0) & 0xF, this.world.board.get(0).get(0).mask());
+
+    LightEmAll loaded = new LightEmAll(pack, 1);
+    t.checkExpect(loaded.width, 5);
+    t.checkExpect(loaded.height, 6);
+    t.checkExpect(loaded.radius, this.world.radius);
+    t.checkExpect(loaded.mst.size(), loaded.nodes.size() - 1);
+    for (int i = 0; i < loaded.nodes.size(); i++) {
+      t.checkExpect(loaded.nodes.get(i).mask(), this.world.nodes.get(i).mask());
+    }
+    t.checkExpect(loaded.board.get(0).get(0).powerStation, true);
+
+    // r gives a new board, not the packed puzzle again
+    LightEmAll big = new LightEmAll(pack, 2);
+    int[] before = new int[big.nodes.size()];
+    for (int i = 0; i < before.length; i++) {
+      before[i] = big.nodes.get(i).mask();
+    }
+    big.onKeyEvent("r");
+    int same = 0;
+    for (int i = 0; i < before.length; i++) {
+      if (big.nodes.get(i).mask() == before[i]) {
+        same++;
+      }
+    }
+    t.checkExpect(same < before.length, true);
+    t.checkException(new IndexOutOfBoundsException("No puzzle 3 in a pack of 3"),
+        pack, "width", 3);
+    reset();
+  }
+
+  void testBoardData(Tester t) {
+    reset();
+    BoardData data = new BoardData(this.world, 5);
+    t.checkExpect(data.width, 5);
+    t.checkExpect(data.radius, this.world.radius);
+    t.checkExpect(data.scrambled(0), this.world.board.get(0).get(0).mask());
+    t.checkExpect(data.scrambled(2 * 6 + 3), this.world.board.get(2).get(3).mask());
+    t.checkExpect(data.neighbor(0, GamePiece.TOP), -1);
+    t.checkExpect(data.neighbor(0, GamePiece.RIGHT), 6);
+    t.checkExpect(data.neighbor(0, GamePiece.BOTTOM), 1);
+    int[] dist = data.distances(0);
+    for (int d : dist) {
+      t.checkExpect(d >= 0, true);
+    }
+    int solvedWires = 0;
+    for (int i = 0; i < data.tiles.length; i++) {
+      solvedWires += Integer.bitCount(data.solved(i));
+    }
+    t.checkExpect(solvedWires, 2 * (data.tiles.length - 1));
+    reset();
+  }
+
+  void testOrientationSolver(Tester t) {
+    reset();
+    t.checkExpect(OrientationSolver.rotations(GamePiece.TOP),
+        (1 << 1) | (1 << 2) | (1 << 4) | (1 << 8));
+    t.checkExpect(OrientationSolver.rotations(GamePiece.TOP | GamePiece.BOTTOM),
+        (1 << 5) | (1 << 10));
+    t.checkExpect(GamePiece.opposite(GamePiece.LEFT), GamePiece.RIGHT);
+    BoardData data = new BoardData(this.world, 5);
+    OrientationSolver solver = new OrientationSolver(data, 1000);
+    int depth = solver.solve();
+    t.checkExpect(depth >= 0 && depth <= solver.guesses, true);
+
+    // one full propagation narrows the candidates and leaves nothing queued
+    int[] cand = new int[data.tiles.length];
+    int before = 0;
+    for (int i = 0; i < cand.length; i++) {
+      cand[i] = OrientationSolver.rotations(data.scrambled(i));
+      before += Integer.bitCount(cand[i]);
+    }
+    OrientationSolver fresh = new OrientationSolver(data, 1000);
+    t.checkExpect(fresh.propagate(cand, -1), true);
+    int after = 0;
+    for (int i = 0; i < cand.length; i++) {
+      after += Integer.bitCount(cand[i]);
+      t.checkExpect(fresh.queued[i], false);
+      t.checkExpect((cand[i] & (1 << data.solved(i))) != 0, true);
+    }
+    t.checkExpect(after < before, true);
+    reset();
+  }
+
+  void testDifficultyScorer(Tester t) throws IOException {
+    reset();
+    BoardData[] boards = DifficultyScorer.generate(5, 6, 4, 5);
+    t.checkExpect(boards[0].tiles, new BoardData(this.world, 5).tiles);
+    ScoreColumns scores = DifficultyScorer.scoreAll(boards);
+    t.checkExpect(scores.seed[3], 8L);
+    t.checkExpect(scores.misoriented[0], DifficultyScorer.misoriented(boards[0]));
+    t.checkExpect(scores.diameter[0] / 2 + 2, this.world.radius);
+    t.checkExpect(scores.stationMoves[0] >= 0, true);
+
+    Path file = Files.createTempFile("lightemall", ".scores");
+    file.toFile().deleteOnExit();
+    scores.write(file);
+    ScoreColumns read = new ScoreColumns(file);
+    t.checkExpect(read.count, 4);
+    t.checkExpect(read.seed, scores.seed);
+    t.checkExpect(read.difficulty, scores.difficulty);
+    t.checkExpect(read.stationMoves, scores.stationMoves);
+    t.checkExpect(ScoreColumns.byteWidth(new long[] {1, -128, 127}), 1);
+    t.checkExpect(ScoreColumns.byteWidth(new long[] {1, 300}), 2);
+    t.checkExpect(ScoreColumns.byteWidth(new long[] {70000, 1}), 4);
+    reset();
+  }
+
+  void testTileLayouts(Tester t) {
+    TileLayout[] layouts = new TileLayout[] {
+        new ColumnMajorLayout(37, 21), new RowMajorLayout(37, 21),
+        new BlockedLayout(37, 21, 8), new MortonLayout(37, 21, 16), new MortonLayout(37, 21, 4)};
+    for (TileLayout layout : layouts) {
+      boolean[] used = new boolean[37 * 21];
+      boolean ok = true;
+      for (int col = 0; col < 37; col++) {
+        for (int row = 0; row < 21; row++) {
+          int i = layout.index(col, row);
+          ok = ok && i >= 0 && i < used.length && !used[i]
+              && layout.col(i) == col && layout.row(i) == row;
+          used[Math.max(0, Math.min(used.length - 1, i))] = true;
+          ok = ok && layout.neighbor(i, GamePiece.TOP)
+                  == (row > 0 ? layout.index(col, row - 1) : -1)
+              && layout.neighbor(i, GamePiece.RIGHT)
+                  == (col < 36 ? layout.index(col + 1, row) : -1)
+              && layout.neighbor(i, GamePiece.BOTTOM)
+                  == (row < 20 ? layout.index(col, row + 1) : -1)
+              && layout.neighbor(i, GamePiece.LEFT)
+                  == (col > 0 ? layout.index(col - 1, row) : -1);
+        }
+      }
+      t.checkExpect(ok, true);
+    }
+    t.checkExpect(new ColumnMajorLayout(5, 6).neighbor(15, GamePiece.RIGHT), 21);
+    t.checkExpect(new RowMajorLayout(5, 6).neighbor(17, GamePiece.TOP), 12);
+    t.checkExpect(new RowMajorLayout(5, 6).neighbor(4, GamePiece.RIGHT), -1);
+    t.checkExpect(new ColumnMajorLayout(5, 6).index(2, 3), 15);
+    t.checkExpect(new RowMajorLayout(5, 6).index(2, 3), 17);
+    t.checkExpect(new MortonLayout(8, 8, 8).index(3, 5), 39);
+    t.checkExpect(MortonLayout.compact(MortonLayout.spread(1234)), 1234);
+    t.checkConstructorException(
+        new IllegalArgumentException("Morton blocks must be a power of two: 6"),
+        "MortonLayout", 4, 4, 6);
+  }
+
+  void testLayoutWorld(Tester t) {
+    reset();
+    LightEmAll morton = new LightEmAll(5, 6, new Random(5), new MortonLayout(5, 6, 4));
+    t.checkExpect(morton.nodes.get(1), morton.board.get(1).get(0));
+    t.checkExpect(morton.tileAt(3, 4), morton.board.get(3).get(4));
+    for (int col = 0; col < 5; col++) {
+      for (int row = 0; row < 6; row++) {
+        t.checkExpect(morton.tileAt(col, row).mask(), this.world.tileAt(col, row).mask());
+      }
+    }
+    t.checkExpect(morton.radius, this.world.radius);
+    t.checkExpect(morton.tracker.segmentCount(), this.world.tracker.segmentCount());
+    morton.onTick();
+    this.world.onTick();
+    for (int col = 0; col < 5; col++) {
+      for (int row = 0; row < 6; row++) {
+        t.checkExpect(morton.tileAt(col, row).powerLevel, this.world.tileAt(col, row).powerLevel);
+      }
+    }
+    reset();
+  }
+
+  void testTileAtBounds(Tester t) {
+    reset();
+    t.checkException(new IndexOutOfBoundsException("No tile at 0, 6"), this.world, "tileAt", 0, 6);
+    t.checkException(new IndexOutOfBoundsException("No tile at 5, 0"), this.world, "tileAt", 5, 0);
+    t.checkException(new IndexOutOfBoundsException("No tile at -1, 2"),
+        this.world, "tileAt", -1, 2);
+    t.checkException(new IndexOutOfBoundsException("No tile at 0, 6"),
+        this.world, "getTileAt", new Posn(10, 6 * GamePiece.TILE_SIZE));
+    LightEmAll rows = new LightEmAll(5, 6, new Random(5), new RowMajorLayout(5, 6));
+    t.checkException(new IndexOutOfBoundsException("No tile at 5, 0"), rows, "tileAt", 5, 0);
+  }
+
+  void testRecomputePower(Tester t) {
+    reset();
+    this.world.clearBoard();
+    this.world.makeMSTBoard();
+    this.world.recomputePower();
+    int[] levels = new int[this.world.nodes.size()];
+    for (int i = 0; i < levels.length; i++) {
+      levels[i] = this.world.nodes.get(i).powerLevel;
+      this.world.nodes.get(i).unpower();
+    }
+    this.world.tileAt(0, 0).powerTiles(this.world.radius);
+    for (int i = 0; i < levels.length; i++) {
+      t.checkExpect(levels[i], this.world.nodes.get(i).powerLevel);
+    }
+    t.checkExpect(this.world.tileAt(0, 0).powerLevel, this.world.radius);
+    reset();
+  }
+
+  void testRecomputePowerLoops(Tester t) {
+    // random wiring is full of loops, where the order tiles are reached in matters
+    Random masks = new Random(31);
+    for (int n = 0; n < 20; n++) {
+      LightEmAll loops = new LightEmAll(6, 5, new Random(n));
+      for (GamePiece gp : loops.nodes) {
+        gp.setMask(masks.nextInt(16));
+      }
+      loops.radius = 2 + masks.nextInt(8);
+      loops.recomputePower();
+      int[] levels = new int[loops.nodes.size()];
+      for (int i = 0; i < levels.length; i++) {
+        levels[i] = loops.nodes.get(i).powerLevel;
+        loops.nodes.get(i).unpower();
+      }
+      loops.tileAt(0, 0).powerTiles(loops.radius);
+      for (int i = 0; i < levels.length; i++) {
+        t.checkExpect(levels[i], loops.nodes.get(i).powerLevel);
+      }
+    }
+  }
+
+  void testFarthestAwayLoops(Tester t) {
+    reset();
+    this.world.clearBoard();
+    // a square loop in the corner, with a tail to its right
+    this.world.tileAt(0, 0).setMask(GamePiece.RIGHT | GamePiece.BOTTOM);
+    this.world.tileAt(1, 0).setMask(GamePiece.LEFT | GamePiece.BOTTOM | GamePiece.RIGHT);
+    this.world.tileAt(2, 0).setMask(GamePiece.LEFT);
+    this.world.tileAt(0, 1).setMask(GamePiece.TOP | GamePiece.RIGHT);
+    this.world.tileAt(1, 1).setMask(GamePiece.TOP | GamePiece.LEFT);
+    SearchResult far = this.world.farthestAway(this.world.tileAt(0, 1));
+    t.checkExpect(far.node, this.world.tileAt(2, 0));
+    t.checkExpect(far.depth, 3);
+    t.checkExpect(this.world.farthestAway(this.world.tileAt(0, 0)).node,
+        this.world.tileAt(1, 1));
+    t.checkExpect(this.world.farthestAway(this.world.tileAt(4, 4)).depth, 0);
+    reset();
+  }
+
+  void testRouteTo(Tester t) {
+    reset();
+    this.world.clearBoard();
+    this.world.makeMSTBoard();
+    SearchResult far = this.world.farthestAway(this.world.tileAt(0, 0));
+    ArrayList<GamePiece> path = this.world.routeTo(far.node);
+    t.checkExpect(path.size(), far.depth + 1);
+    t.checkExpect(path.get(0), this.world.tileAt(0, 0));
+    t.checkExpect(path.get(path.size() - 1), far.node);
+    for (int i = 1; i < path.size(); i++) {
+      GamePiece a = path.get(i - 1);
+      GamePiece b = path.get(i);
+      t.checkExpect(Math.abs(a.col - b.col) + Math.abs(a.row - b.row), 1);
+    }
+    t.checkExpect(this.world.routeTo(this.world.tileAt(0, 0)).size(), 1);
+    reset();
+  }
+
+  void testRouteStation(Tester t) {
+    reset();
+    this.world.clearBoard();
+    this.world.makeMSTBoard();
+    SearchResult far = this.world.farthestAway(this.world.tileAt(0, 0));
+    Posn psn = new Posn(far.node.col * GamePiece.TILE_SIZE, far.node.row * GamePiece.TILE_SIZE);
+    this.world.onMouseClicked(psn, "MiddleButton");
+    t.checkExpect(this.world.powerCol, far.node.col);
+    t.checkExpect(this.world.powerRow, far.node.row);
+    t.checkExpect(far.node.powerStation, true);
+    t.checkExpect(far.node.powerLevel, this.world.radius);
+    t.checkExpect(this.world.tileAt(0, 0).powerStation, false);
+    t.checkExpect(this.world.routes.root, this.world.layout.index(far.node.col, far.node.row));
+    t.checkExpect(this.world.routes.valid, true);
+    t.checkExpect(this.world.routeTo(this.world.tileAt(0, 0)).size(), far.depth + 1);
+
+    // a rotation in the tree forgets it, and an unwired tile cannot be reached
+    this.world.onMouseClicked(new Posn(0, 0), "LeftButton");
+    t.checkExpect(this.world.routes.valid, false);
+    GamePiece lonely = this.world.tileAt(0, 0);
+    lonely.clear();
+    this.world.routes.valid = false;
+    t.checkExpect(this.world.routeStationTo(lonely), false);
+    t.checkExpect(far.node.powerStation, true);
+    reset();
+  }
+
+  void testRouteTreeReroot(Tester t) {
+    reset();
+    this.world.clearBoard();
+    this.world.makeMSTBoard();
+    this.world.routeTo(this.world.tileAt(0, 0));
+    this.world.onKeyEvent("down");
+    t.checkExpect(this.world.powerRow, 1);
+    t.checkExpect(this.world.routes.valid, true);
+    t.checkExpect(this.world.routes.root, this.world.layout.index(0, 1));
+    t.checkExpect(this.world.routeTo(this.world.tileAt(0, 0)).size(), 2);
+    reset();
+  }
+
+  void testRouteTreeLoop(Tester t) {
+    reset();
+    this.world.clearBoard();
+    // a square loop in the corner, with a tail to its right
+    this.world.tileAt(0, 0).setMask(GamePiece.RIGHT | GamePiece.BOTTOM);
+    this.world.tileAt(1, 0).setMask(GamePiece.LEFT | GamePiece.BOTTOM | GamePiece.RIGHT);
+    this.world.tileAt(2, 0).setMask(GamePiece.LEFT);
+    this.world.tileAt(0, 1).setMask(GamePiece.TOP | GamePiece.RIGHT);
+    this.world.tileAt(1, 1).setMask(GamePiece.TOP | GamePiece.LEFT);
+    this.world.routes.valid = false;
+    t.checkExpect(this.world.routeTo(this.world.tileAt(2, 0)).size(), 3);
+    t.checkExpect(this.world.routes.acyclic, false);
+
+    // from the far corner of the loop, its other side is still one step away
+    t.checkExpect(this.world.routeStationTo(this.world.tileAt(1, 1)), true);
+    t.checkExpect(this.world.routes.valid, false);
+    t.checkExpect(this.world.routeTo(this.world.tileAt(0, 1)).size(), 2);
+    t.checkExpect(this.world.routes.root, this.world.layout.index(1, 1));
+
+    // without the loop, moving the station keeps the tree
+    this.world.tileAt(1, 1).setMask(GamePiece.TOP);
+    this.world.tileAt(0, 1).setMask(GamePiece.TOP);
+    this.world.routes.valid = false;
+    t.checkExpect(this.world.routeStationTo(this.world.tileAt(2, 0)), true);
+    t.checkExpect(this.world.routes.acyclic, true);
+    t.checkExpect(this.world.routes.valid, true);
+    t.checkExpect(this.world.routeTo(this.world.tileAt(0, 1)).size(), 4);
+    reset();
+  }
+
+  void testEventRing(Tester t) {
+    EventRing ring = new EventRing(4);
+    t.checkExpect(ring.offer(10, SessionRecorder.TICK, 0), true);
+    t.checkExpect(ring.offer(20, SessionRecorder.KEY, 3), true);
+    t.checkExpect(ring.offer(30, SessionRecorder.ROTATE_LEFT, -1), true);
+    t.checkExpect(ring.offer(40, SessionRecorder.ROUTE, 7), true);
+    t.checkExpect(ring.offer(50, SessionRecorder.TICK, 0), false);
+    t.checkExpect(ring.dropped.get(), 1L);
+    t.checkExpect(ring.highWater.get(), 4L);
+
+    java.nio.ByteBuffer out = java.nio.ByteBuffer.allocate(3 * SessionRecorder.RECORD_SIZE);
+    t.checkExpect(ring.drain(out), 3);
+    t.checkExpect(ring.size(), 1);
+    out.flip();
+    t.checkExpect(out.getLong(), 10L);
+    t.checkExpect(out.getInt(), SessionRecorder.TICK);
+    t.checkExpect(out.getInt(), 0);
+    out.getLong();
+    t.checkExpect(out.getInt(), SessionRecorder.KEY);
+    t.checkExpect(out.getInt(), 3);
+    out.getLong();
+    out.getInt();
+    t.checkExpect(out.getInt(), -1);
+
+    // the ring wraps around once the consumer has caught up
+    t.checkExpect(ring.offer(60, SessionRecorder.TICK, 0), true);
+    out.clear();
+    t.checkExpect(ring.drain(out), 2);
+    t.checkExpect(out.getLong(16), 60L);
+    t.checkConstructorException(
+        new IllegalArgumentException("Ring size must be a power of two: 6"), "EventRing", 6);
+  }
+
+  void testSessionRecorder(Tester t) throws IOException {
+    reset();
+    Path file = Files.createTempFile("session", ".rec");
+    file.toFile().deleteOnExit();
+    this.world.recorder = new SessionRecorder(file, 5, 6, 5);
+    this.world.onMouseClicked(new Posn(0, 0), "LeftButton");
+    this.world.onTick();
+    this.world.onKeyEvent("x");
+    this.world.onKeyEvent("down");
+    this.world.onMouseClicked(new Posn(130, 70), "RightButton");
+    this.world.onMouseClicked(new Posn(70, 0), "MiddleButton");
+    this.world.onTick();
+    this.world.onKeyEvent("r");
+    this.world.onMouseClicked(new Posn(210, 260), "LeftButton");
+    this.world.recorder.closeAndWait();
+    t.checkExpect(this.world.recorder.dropped(), 0L);
+    t.checkExpect(this.world.recorder.blocksWritten, 1L);
+
+    SessionRecording rec = new SessionRecording(file);
+    t.checkExpect(rec.width, 5);
+    t.checkExpect(rec.height, 6);
+    t.checkExpect(rec.seed, 5L);
+    t.checkExpect(rec.count, 8);
+    t.checkExpect(rec.kinds[0], SessionRecorder.ROTATE_LEFT);
+    t.checkExpect(rec.args[0], 0);
+    t.checkExpect(rec.kinds[2], SessionRecorder.KEY);
+    t.checkExpect(rec.args[2], 1);
+    t.checkExpect(rec.kinds[3], SessionRecorder.ROTATE_RIGHT);
+    t.checkExpect(rec.args[3], 2 * 6 + 1);
+    t.checkExpect(rec.kinds[4], SessionRecorder.ROUTE);
+    t.checkExpect(rec.times[7] >= rec.times[0], true);
+
+    // replaying gives back the same game
+    LightEmAll copy = rec.replay();
+    for (GamePiece gp : this.world.nodes) {
+      t.checkExpect(copy.tileAt(gp.col, gp.row).mask(), gp.mask());
+      t.checkExpect(copy.tileAt(gp.col, gp.row).powerLevel, gp.powerLevel);
+    }
+    t.checkExpect(copy.powerCol, this.world.powerCol);
+    t.checkExpect(copy.powerRow, this.world.powerRow);
+    reset();
+  }
+
+  void testRecorderDropsWhenFull(Tester t) throws IOException {
+    Path file = Files.createTempFile("session", ".rec");
+    file.toFile().deleteOnExit();
+    SessionRecorder recorder = new SessionRecorder(file, 2, 2, 1, 2, RecordingWriter.shared());
+    int kept = 0;
+    for (int i = 0; i < 100000; i++) {
+      if (recorder.record(SessionRecorder.TICK, i)) {
+        kept++;
+      }
+    }
+    recorder.closeAndWait();
+    t.checkExpect(recorder.dropped() + kept, 100000L);
+    t.checkExpect(recorder.highWater() <= 2, true);
+    SessionRecording rec = new SessionRecording(file);
+    t.checkExpect(rec.count, kept);
+    t.checkExpect(rec.args[rec.count - 1] < 100000, true);
+  }
+
+  void testServerRecording(Tester t) throws IOException {
+    Path dir = Files.createTempDirectory("sessions");
+    dir.toFile().deleteOnExit();
+    LightServer server = new LightServer(2);
+    server.recordDir = dir;
+    server.recordRing = 16;
+    t.checkExpect(server.dispatch("NEW 5 6 5"), "SESSION 0");
+    t.checkExpect(server.dispatch("ROTATE 0 1 2 RIGHT"), "OK");
+    t.checkExpect(server.dispatch("TICK 0").startsWith("POWERED"), true);
+    LightEmAll played = server.sessions.get(0).world;
+    int stationCol = played.powerCol;
+    int stationRow = played.powerRow;
+    t.checkExpect(server.dispatch("ROUTE 0 " + stationCol + " " + stationRow), "OK");
+    SessionRecorder recorder = played.recorder;
+    t.checkExpect(recorder.ring.capacity, 16);
+    t.checkExpect(server.dispatch("CLOSE 0"), "CLOSED");
+    server.workers.shutdown();
+    recorder.closeAndWait();
+
+    Path file = dir.resolve("session-0.rec");
+    file.toFile().deleteOnExit();
+    SessionRecording rec = new SessionRecording(file);
+    t.checkExpect(rec.seed, 5L);
+    t.checkExpect(rec.count, 3);
+    t.checkExpect(rec.kinds[0], SessionRecorder.ROTATE_RIGHT);
+    t.checkExpect(rec.args[0], 1 * 6 + 2);
+    t.checkExpect(rec.kinds[1], SessionRecorder.TICK);
+    t.checkExpect(rec.kinds[2], SessionRecorder.ROUTE);
+    t.checkExpect(rec.args[2], stationCol * 6 + stationRow);
+    LightEmAll copy = rec.replay();
+    for (GamePiece gp : played.nodes) {
+      t.checkExpect(copy.tileAt(gp.col, gp.row).mask(), gp.mask());
+      t.checkExpect(copy.tileAt(gp.col, gp.row).powerLevel, gp.powerLevel);
+    }
+  }
+
+  void testPackRecording(Tester t) throws IOException {
+    Path packFile = Files.createTempFile("lightemall", ".pack");
+    packFile.toFile().deleteOnExit();
+    PuzzlePackWriter writer = new PuzzlePackWriter();
+    writer.add(5, 6, 5, 3);
+    writer.write(packFile);
+    PuzzlePack pack = new PuzzlePack(packFile);
+    Path file = Files.createTempFile("session", ".rec");
+    file.toFile().deleteOnExit();
+
+    // pressing r draws from the pack game's own stream, which replay must match
+    LightEmAll played = new LightEmAll(pack, 0);
+    played.recorder = new SessionRecorder(file, pack, 0);
+    played.onMouseClicked(new Posn(70, 120), "LeftButton");
+    played.onKeyEvent("r");
+    played.onMouseClicked(new Posn(20, 20), "RightButton");
+    played.onTick();
+    played.recorder.closeAndWait();
+
+    SessionRecording rec = new SessionRecording(file);
+    t.checkExpect(rec.pack, packFile.toAbsolutePath().toString());
+    t.checkExpect(rec.puzzle, 0);
+    t.checkExpect(rec.seed, 5L);
+    t.checkExpect(rec.count, 4);
+    LightEmAll copy = rec.replay();
+    for (GamePiece gp : played.nodes) {
+      t.checkExpect(copy.tileAt(gp.col, gp.row).mask(), gp.mask());
+      t.checkExpect(copy.tileAt(gp.col, gp.row).powerLevel, gp.powerLevel);
+    }
+
+    // version 1 recordings, which stop after the seed, are still read
+    Path old = Files.createTempFile("session", ".rec");
+    old.toFile().deleteOnExit();
+    java.nio.ByteBuffer head = java.nio.ByteBuffer.allocate(24);
+    head.putInt(SessionRecorder.MAGIC).putInt(1).putInt(5).putInt(6).putLong(5);
+    Files.write(old, head.array());
+    SessionRecording v1 = new SessionRecording(old);
+    t.checkExpect(v1.seed, 5L);
+    t.checkExpect(v1.pack, null);
+    t.checkExpect(v1.puzzle, -1);
+    t.checkExpect(v1.count, 0);
+    t.checkExpect(v1.replay().tileAt(0, 0).mask(),
+        new LightEmAll(5, 6, new Random(5)).tileAt(0, 0).mask());
+  }
+
+  void testRecorderFailure(Tester t) throws IOException {
+    RecordingWriter writer = new RecordingWriter();
+    Path brokenFile = Files.createTempFile("session", ".rec");
+    brokenFile.toFile().deleteOnExit();
+    Path goodFile = Files.createTempFile("session", ".rec");
+    goodFile.toFile().deleteOnExit();
+    SessionRecorder broken = new SessionRecorder(brokenFile, 2, 2, 1, 16, writer);
+    SessionRecorder good = new SessionRecorder(goodFile, 2, 2, 2, 16, writer);
+
+    // an unexpected error in one recording ends it, and only it
+    broken.ring = null;
+    t.checkExpect(good.record(SessionRecorder.TICK, 0), true);
+    CompletableFuture<Void> closing = broken.close();
+    t.checkException(new IOException("Recording failed", new NullPointerException()),
+        broken, "closeAndWait");
+    t.checkExpect(closing.isCompletedExceptionally(), true);
+    t.checkExpect(good.record(SessionRecorder.TICK, 1), true);
+    good.closeAndWait();
+    t.checkExpect(good.record(SessionRecorder.TICK, 2), false);
+    t.checkExpect(good.dropped(), 1L);
+    t.checkExpect(new SessionRecording(goodFile).count, 2);
+    t.checkExpect(writer.thread.isAlive(), true);
+  }
+
+  void testMaskScramblerRotate(Tester t) {
+    // nibble i holds mask i, and is turned i % 4 times
+    long masks = 0xFEDCBA9876543210L;
+    long turns = 0xBA98321076543210L;
+    long rotated = MaskScrambler.rotateLeft(masks, turns);
+    for (int i = 0; i < 16; i++) {
+      GamePiece expected = new GamePiece(false, false, false, false, 0, 0);
+      expected.setMask(i);
+      for (int k = 0; k < i % 4; k++) {
+        expected.rotateLeft();
+      }
+      t.checkExpect((int) (rotated >>> (4 * i)) & 0xF, expected.mask());
+    }
+    t.checkExpect(MaskScrambler.rotateLeft(masks, 0L), masks);
+    t.checkExpect(MaskScrambler.rotateLeft(0x1111111111111111L, 0x1111111111111111L),
+        0x8888888888888888L);
+  }
+
+  void testBulkScramble(Tester t) {
+    reset();
+    this.world.clearBoard();
+    this.world.makeMSTBoard();
+    int[] solved = new int[this.world.nodes.size()];
+    for (GamePiece gp : this.world.nodes) {
+      solved[gp.col * 6 + gp.row] = gp.mask();
+    }
+    MaskScrambler.scramble(this.world.nodes, 6, new Random(34));
+
+    // every tile is a rotation of itself, and some have turned
+    int turned = 0;
+    for (GamePiece gp : this.world.nodes) {
+      int m = solved[gp.col * 6 + gp.row];
+      int left = ((m >> 1) | (m << 3)) & 0xF;
+      int half = ((m >> 2) | (m << 2)) & 0xF;
+      int right = ((m << 1) | (m >> 3)) & 0xF;
+      t.checkExpect(gp.mask() == m || gp.mask() == left || gp.mask() == half
+          || gp.mask() == right, true);
+      if (gp.mask() != m) {
+        turned++;
+      }
+    }
+    t.checkExpect(turned > 0, true);
+
+    // the pieces end up as their packed masks would
+    long[] words = new long[2];
+    for (int k = 0; k < 30; k++) {
+      words[k >> 4] |= (long) solved[k] << ((k & 15) * 4);
+    }
+    MaskScrambler.scramble(words, new Random(34));
+    for (GamePiece gp : this.world.nodes) {
+      int k = gp.col * 6 + gp.row;
+      t.checkExpect((int) (words[k >> 4] >>> ((k & 15) * 4)) & 0xF, gp.mask());
+    }
+
+    // the same seed gives the same board in any layout
+    LightEmAll morton = new LightEmAll(5, 6, new Random(5), new MortonLayout(5, 6, 2));
+    morton.clearBoard();
+    morton.makeMSTBoard();
+    MaskScrambler.scramble(morton.nodes, 6, new Random(34));
+    for (GamePiece gp : this.world.nodes) {
+      t.checkExpect(morton.tileAt(gp.col, gp.row).mask(), gp.mask());
+    }
+    reset();
+  }
+
+  void testBulkScrambleThreshold(Tester t) {
+    int old = LightEmAll.BULK_SCRAMBLE_MIN_TILES;
+    LightEmAll.BULK_SCRAMBLE_MIN_TILES = 30;
+    LightEmAll bulk = new LightEmAll(5, 6, new Random(5));
+    LightEmAll again = new LightEmAll(5, 6, new Random(5));
+    LightEmAll.BULK_SCRAMBLE_MIN_TILES = old;
+    LightEmAll legacy = new LightEmAll(5, 6, new Random(5));
+    boolean differs = false;
+    for (GamePiece gp : bulk.nodes) {
+      t.checkExpect(again.tileAt(gp.col, gp.row).mask(), gp.mask());
+      if (legacy.tileAt(gp.col, gp.row).mask() != gp.mask()) {
+        differs = true;
+      }
+    }
+    t.checkExpect(differs, true);
+    t.checkExpect(bulk.tracker.segmentCount(), again.tracker.segmentCount());
+  }
+
 }
@@ -0,0 +1,134 @@
+import java.util.ArrayList;
+import java.util.Random;
+
+// Scrambles tiles in bulk. The tiles' wire masks are packed sixteen to a long,
+// four bits each as in GamePiece.mask(), and every long is rotated at once
+// with a few shifts and masks, so a whole board takes one random long per 32
+// tiles instead of several nextInt calls and boolean shuffles per tile. Boards
+// of GamePieces use the same random longs through a lookup table.
+//
+// Every tile gets 0 to 3 turns uniformly, unlike LightEmAll.rotateRandomly,
+// which gives 0, 1 or 2 turns with chances 1/3, 4/9 and 2/9.
+//
+// Only the packed form is much faster. Nothing in the game keeps its masks
+// packed, so scramble(long[], Random) is the reference the GamePiece scramble
+// is tested against. The GamePiece form is roughly twice as fast as the
+// per-tile scramble on a 1000x1000 board, no faster on a 256x256 one, and a
+// small part of generating either.
+//   java -Xmx3g MaskScrambler [size] [runs]
+// times rotating each GamePiece in turn against the bulk scramble of the
+// same GamePieces and of their packed masks.
+class MaskScrambler {
+  // bit 0 of every nibble, and bits 0 to 2 and 0 to 1 of every nibble
+  static long NIBBLE_LOW = 0x1111111111111111L;
+  static long NIBBLE_LOW3 = 0x7777777777777777L;
+  static long NIBBLE_LOW2 = 0x3333333333333333L;
+
+  // Rotates every one of the sixteen masks in the given long to the left (as
+  // GamePiece.rotateLeft does) by the number of turns held in bits 0 and 1 of
+  // the matching nibble of turns; bits 2 and 3 of each nibble are ignored
+  static long rotateLeft(long masks, long turns) {
+    // 0xF in every nibble whose turn count has the given bit set
+    long once = (turns & NIBBLE_LOW) * 0xF;
+    long twice = ((turns >>> 1) & NIBBLE_LOW) * 0xF;
+    long byOne = ((masks >>> 1) & NIBBLE_LOW3) | ((masks & NIBBLE_LOW) << 3);
+    masks = (masks & ~once) | (byOne & once);
+    long byTwo = ((masks >>> 2) & NIBBLE_LOW2) | ((masks & NIBBLE_LOW2) << 2);
+    return (masks & ~twice) | (byTwo & twice);
+  }
+
+  // Gives every mask a uniformly random number of turns. Each random long
+  // covers two words: its low two bits of every nibble turn the first, its
+  // high two bits the second.
+  static void scramble(long[] words, Random rand) {
+    for (int w = 0; w < words.length; w += 2) {
+      long turns = rand.nextLong();
+      words[w] = MaskScrambler.rotateLeft(words[w], turns);
+      if (w + 1 < words.length) {
+        words[w + 1] = MaskScrambler.rotateLeft(words[w + 1], turns >>> 2);
+      }
+    }
+  }
+
+  // ROTATED[16 * turns + mask] is the mask turned left the given number of times
+  static int[] ROTATED = MaskScrambler.rotationTable();
+
+  static int[] rotationTable() {
+    int[] table = new int[64];
+    for (int turns = 0; turns < 4; turns++) {
+      for (int mask = 0; mask < 16; mask++) {
+        table[16 * turns + mask] = (int) MaskScrambler.rotateLeft(mask, turns) & 0xF;
+      }
+    }
+    return table;
+  }
+
+  // the number of turns scramble(long[], Random) gives mask k, out of the
+  // random longs it draws
+  static int turnsOf(long[] draws, int k) {
+    return (int) (draws[k >> 5] >>> (4 * (k & 15) + 2 * ((k >> 4) & 1))) & 3;
+  }
+
+  // Scrambles the given tiles of a board of the given height, exactly as
+  // scramble(long[], Random) scrambles their masks packed column-major, so the
+  // result does not depend on the board's layout. The tiles are GamePieces
+  // rather than packed masks, so each is looked up in ROTATED in one pass over
+  // the list instead of being packed and unpacked.
+  static void scramble(ArrayList<GamePiece> nodes, int height, Random rand) {
+    long[] draws = new long[(nodes.size() + 31) / 32];
+    for (int i = 0; i < draws.length; i++) {
+      draws[i] = rand.nextLong();
+    }
+    for (GamePiece gp : nodes) {
+      int turns = MaskScrambler.turnsOf(draws, gp.col * height + gp.row);
+      if (turns != 0) {
+        gp.setMask(ROTATED[16 * turns + gp.mask()]);
+      }
+    }
+  }
+
+  public static void main(String[] args) {
+    int size = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+    ArrayList<GamePiece> nodes = new ArrayList<GamePiece>();
+    Random masks = new Random(size);
+    for (int col = 0; col < size; col++) {
+      for (int row = 0; row < size; row++) {
+        GamePiece gp = new GamePiece(false, false, false, false, row, col);
+        gp.setMask(masks.nextInt(16));
+        nodes.add(gp);
+      }
+    }
+
+    long[] words = new long[(nodes.size() + 15) / 16];
+    for (int k = 0; k < nodes.size(); k++) {
+      words[k >> 4] |= (long) nodes.get(k).mask() << ((k & 15) * 4);
+    }
+
+    long perTile = Long.MAX_VALUE;
+    long bulk = Long.MAX_VALUE;
+    long packed = Long.MAX_VALUE;
+    for (int r = 0; r < runs; r++) {
+      Random rand = new Random(r);
+      long start = System.nanoTime();
+      for (GamePiece gp : nodes) {
+        for (int i = 0; i < rand.nextInt(3); i++) {
+          gp.rotateLeft();
+        }
+      }
+      perTile = Math.min(perTile, System.nanoTime() - start);
+
+      start = System.nanoTime();
+      MaskScrambler.scramble(nodes, size, new Random(r));
+      bulk = Math.min(bulk, System.nanoTime() - start);
+
+      start = System.nanoTime();
+      MaskScrambler.scramble(words, new Random(r));
+      packed = Math.min(packed, System.nanoTime() - start);
+    }
+    System.out.printf("%dx%d board, best of %d runs%n", size, size, runs);
+    System.out.printf("per tile      %8.1f ms%n", perTile / 1e6);
+    System.out.printf("bulk, pieces  %8.1f ms%n", bulk / 1e6);
+    System.out.printf("bulk, packed  %8.1f ms%n", packed / 1e6);
+  }
+}
@@ -0,0 +1,233 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Random;
+
+// A read-only, memory-mapped file of many pre-generated puzzles.
+//
+// Layout (big-endian):
+//   header  MAGIC, VERSION, puzzle count, 0                       4 ints
+//   index   one ENTRY_SIZE record per puzzle:
+//           offset (long), width, height, seed (long), radius,
+//           difficulty, powerCol, powerRow
+//   tiles   width * height bytes per puzzle in column-major order,
+//           the scrambled mask in the low four bits and the solved
+//           mask in the high four bits
+//
+// Entries are sorted by width, height, difficulty, radius and seed, so each
+// group of puzzles is contiguous. Reading puzzle #N is a fixed-offset read of
+// its index record followed by copying its tile bytes, with nothing to parse.
+class PuzzlePack {
+  static int MAGIC = 0x4C454150;
+  static int VERSION = 1;
+  static int HEADER_SIZE = 16;
+  static int ENTRY_SIZE = 40;
+
+  MappedByteBuffer buffer;
+  int count;
+  // where the pack was read from, so that recordings of its games can name it
+  Path path;
+
+  PuzzlePack(Path path) throws IOException {
+    this.path = path;
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    if (this.buffer.capacity() < HEADER_SIZE
+        || this.buffer.getInt(0) != MAGIC || this.buffer.getInt(4) != VERSION) {
+      throw new IOException("Not a puzzle pack: " + path);
+    }
+    this.count = this.buffer.getInt(8);
+  }
+
+  // the position of the given puzzle's index record
+  int entry(int n) {
+    if (n < 0 || n >= this.count) {
+      throw new IndexOutOfBoundsException("No puzzle " + n + " in a pack of " + this.count);
+    }
+    return HEADER_SIZE + n * ENTRY_SIZE;
+  }
+
+  long offset(int n) {
+    return this.buffer.getLong(this.entry(n));
+  }
+
+  int width(int n) {
+    return this.buffer.getInt(this.entry(n) + 8);
+  }
+
+  int height(int n) {
+    return this.buffer.getInt(this.entry(n) + 12);
+  }
+
+  long seed(int n) {
+    return this.buffer.getLong(this.entry(n) + 16);
+  }
+
+  int radius(int n) {
+    return this.buffer.getInt(this.entry(n) + 24);
+  }
+
+  int difficulty(int n) {
+    return this.buffer.getInt(this.entry(n) + 28);
+  }
+
+  int powerCol(int n) {
+    return this.buffer.getInt(this.entry(n) + 32);
+  }
+
+  int powerRow(int n) {
+    return this.buffer.getInt(this.entry(n) + 36);
+  }
+
+  // the packed tile byte of the given puzzle at (col, row)
+  int tile(int n, int col, int row) {
+    return this.buffer.get((int) this.offset(n) + col * this.height(n) + row) & 0xFF;
+  }
+
+  // Sets the wires of the given pieces to their scrambled masks in puzzle n
+  void loadInto(int n, ArrayList<GamePiece> nodes) {
+    int offset = (int) this.offset(n);
+    int height = this.height(n);
+    for (GamePiece gp : nodes) {
+      gp.setMask(this.buffer.get(offset + gp.col * height + gp.row) & 0xF);
+    }
+  }
+
+  // The first puzzle of the given size with at least the given difficulty,
+  // or -1 if there is none
+  int find(int width, int height, int difficulty) {
+    int lo = 0;
+    int hi = this.count;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (this.compare(mid, width, height, difficulty) < 0) {
+        lo = mid + 1;
+      }
+      else {
+        hi = mid;
+      }
+    }
+    if (lo < this.count && this.width(lo) == width && this.height(lo) == height) {
+      return lo;
+    }
+    return -1;
+  }
+
+  // compares puzzle n against the given group key, in the order of the index
+  int compare(int n, int width, int height, int difficulty) {
+    if (this.width(n) != width) {
+      return Integer.compare(this.width(n), width);
+    }
+    else if (this.height(n) != height) {
+      return Integer.compare(this.height(n), height);
+    }
+    else {
+      return Integer.compare(this.difficulty(n), difficulty);
+    }
+  }
+}
+
+// Generates puzzles with kruskals, scores their difficulty and writes them
+// out as a PuzzlePack.
+//   java PuzzlePackWriter <file> <width> <height> <count> [firstSeed]
+class PuzzlePackWriter {
+  ArrayList<BoardData> entries;
+
+  PuzzlePackWriter() {
+    this.entries = new ArrayList<BoardData>();
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 4) {
+      System.err.println(
+          "Usage: java PuzzlePackWriter <file> <width> <height> <count> [firstSeed]");
+      return;
+    }
+    int width = Integer.parseInt(args[1]);
+    int height = Integer.parseInt(args[2]);
+    int count = Integer.parseInt(args[3]);
+    long firstSeed = args.length > 4 ? Long.parseLong(args[4]) : 0;
+
+    BoardData[] boards = DifficultyScorer.generate(width, height, count, firstSeed);
+    ScoreColumns scores = DifficultyScorer.scoreAll(boards);
+    PuzzlePackWriter writer = new PuzzlePackWriter();
+    for (int i = 0; i < count; i++) {
+      boards[i].difficulty = scores.difficulty[i];
+      writer.add(boards[i]);
+    }
+    writer.write(Paths.get(args[0]));
+  }
+
+  // Generates the puzzle LightEmAll would make from the given seed and adds it
+  void add(int width, int height, long seed, int difficulty) {
+    BoardData data = new BoardData(new LightEmAll(width, height, new Random(seed)), seed);
+    data.difficulty = difficulty;
+    this.add(data);
+  }
+
+  // Adds the given puzzle
+  void add(BoardData data) {
+    this.entries.add(data);
+  }
+
+  // Writes every added puzzle, grouped and indexed, to the given file
+  void write(Path path) throws IOException {
+    this.entries.sort(new PackOrder());
+
+    long offset = PuzzlePack.HEADER_SIZE + (long) this.entries.size() * PuzzlePack.ENTRY_SIZE;
+    ByteBuffer head = ByteBuffer.allocate((int) offset);
+    head.putInt(PuzzlePack.MAGIC).putInt(PuzzlePack.VERSION).putInt(this.entries.size()).putInt(0);
+    for (BoardData e : this.entries) {
+      head.putLong(offset).putInt(e.width).putInt(e.height).putLong(e.seed)
+          .putInt(e.radius).putInt(e.difficulty).putInt(e.powerCol).putInt(e.powerRow);
+      offset += e.tiles.length;
+    }
+    if (offset > Integer.MAX_VALUE) {
+      throw new IOException("Puzzle pack would be too large to map: " + offset + " bytes");
+    }
+    head.flip();
+
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (head.hasRemaining()) {
+        channel.write(head);
+      }
+      for (BoardData e : this.entries) {
+        ByteBuffer tiles = ByteBuffer.wrap(e.tiles);
+        while (tiles.hasRemaining()) {
+          channel.write(tiles);
+        }
+      }
+    }
+  }
+}
+
+//Function Class that orders BoardData by size, then difficulty, radius and seed
+class PackOrder implements Comparator<BoardData> {
+
+  public int compare(BoardData o1, BoardData o2) {
+    if (o1.width != o2.width) {
+      return Integer.compare(o1.width, o2.width);
+    }
+    else if (o1.height != o2.height) {
+      return Integer.compare(o1.height, o2.height);
+    }
+    else if (o1.difficulty != o2.difficulty) {
+      return Integer.compare(o1.difficulty, o2.difficulty);
+    }
+    else if (o1.radius != o2.radius) {
+      return Integer.compare(o1.radius, o2.radius);
+    }
+    else {
+      return Long.compare(o1.seed, o2.seed);
+    }
+  }
+
+}
@@ -0,0 +1,142 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+
+import javalib.worldimages.ComputedPixelImage;
+
+// Draws a whole board into one pixel buffer instead of placing an image per
+// tile into the WorldScene. Every combination of wire mask, power band and
+// station is drawn once up front with GamePiece.drawInBand, so the rows copied
+// into the buffer are exactly the pixels javalib would have drawn for the tile.
+class RasterRenderer {
+  static int MASKS = 16;
+  static int BANDS = GamePiece.WIRE_COLORS.length;
+  // the sprites of the last tile size asked for, shared by every renderer
+  static int[][] cachedSprites;
+  static int cachedTileSize;
+
+  int width;
+  int height;
+  int tileSize;
+  // one tileSize x tileSize sprite per (band, mask, station), see spriteIndex;
+  // shared with other renderers, so never written to
+  int[][] sprites;
+  // the image shown in the scene and the ARGB pixels behind it
+  ComputedPixelImage image;
+  int[] pixels;
+  // whether pixels is the image's own buffer, or has to be copied into it
+  boolean shared;
+  // the sprite last drawn at each position of the nodes list, -1 if none yet
+  int[] drawn;
+
+  RasterRenderer(int width, int height) {
+    this.width = width;
+    this.height = height;
+    this.tileSize = GamePiece.TILE_SIZE;
+    this.sprites = RasterRenderer.spritesFor(this.tileSize);
+    this.image = new ComputedPixelImage(width * this.tileSize, height * this.tileSize);
+    this.pixels = RasterRenderer.pixelsOf(this.image);
+    this.shared = this.pixels != null;
+    if (!this.shared) {
+      this.pixels = new int[width * this.tileSize * height * this.tileSize];
+    }
+    this.drawn = new int[width * height];
+    for (int i = 0; i < this.drawn.length; i++) {
+      this.drawn[i] = -1;
+    }
+  }
+
+  // the sprite that shows the given piece at the given radius
+  static int spriteIndex(GamePiece gp, int radius) {
+    int index = (gp.powerBand(radius) * MASKS + gp.mask()) * 2;
+    return gp.powerStation ? index + 1 : index;
+  }
+
+  // The sprites for the given tile size, drawn only when the size changes
+  static synchronized int[][] spritesFor(int tileSize) {
+    if (cachedSprites == null || cachedTileSize != tileSize) {
+      cachedSprites = RasterRenderer.makeSprites(tileSize);
+      cachedTileSize = tileSize;
+    }
+    return cachedSprites;
+  }
+
+  // Draws every sprite once with javalib, onto an RGB image like the one
+  // javalib's canvas uses, and keeps its pixels
+  static int[][] makeSprites(int tileSize) {
+    int[][] result = new int[BANDS * MASKS * 2][];
+    GamePiece scratch = new GamePiece(false, false, false, false, 0, 0);
+    BufferedImage tile = new BufferedImage(tileSize, tileSize, BufferedImage.TYPE_INT_RGB);
+
+    for (int band = 0; band < BANDS; band++) {
+      for (int mask = 0; mask < MASKS; mask++) {
+        for (int station = 0; station < 2; station++) {
+          scratch.setMask(mask);
+          scratch.powerStation = station == 1;
+          Graphics2D g = tile.createGraphics();
+          g.translate(tileSize / 2, tileSize / 2);
+          scratch.drawInBand(band).draw(g);
+          g.dispose();
+
+          int[] sprite = tile.getRGB(0, 0, tileSize, tileSize, null, 0, tileSize);
+          for (int i = 0; i < sprite.length; i++) {
+            sprite[i] |= 0xFF000000;
+          }
+          result[(band * MASKS + mask) * 2 + station] = sprite;
+        }
+      }
+    }
+    return result;
+  }
+
+  // The ARGB buffer behind the given image, or null if javalib does not let us
+  // reach it, in which case pixels are copied into the image after each render
+  static int[] pixelsOf(ComputedPixelImage img) {
+    try {
+      Field field = ComputedPixelImage.class.getDeclaredField("image");
+      field.setAccessible(true);
+      BufferedImage buffer = (BufferedImage) field.get(img);
+      return ((DataBufferInt) buffer.getRaster().getDataBuffer()).getData();
+    }
+    catch (ReflectiveOperationException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  // Paints the given pieces into the buffer and returns the board image. Tiles
+  // whose sprite has not changed since the last render are left alone.
+  ComputedPixelImage render(ArrayList<GamePiece> nodes, int radius) {
+    int stride = this.width * this.tileSize;
+
+    for (int tile = 0; tile < nodes.size(); tile++) {
+      GamePiece gp = nodes.get(tile);
+      int index = RasterRenderer.spriteIndex(gp, radius);
+      if (this.drawn[tile] != index) {
+        this.drawn[tile] = index;
+        int[] sprite = this.sprites[index];
+        int at = gp.row * this.tileSize * stride + gp.col * this.tileSize;
+        for (int y = 0; y < this.tileSize; y++) {
+          System.arraycopy(sprite, y * this.tileSize, this.pixels, at, this.tileSize);
+          at += stride;
+        }
+        if (!this.shared) {
+          this.copyTile(gp.col, gp.row);
+        }
+      }
+    }
+    return this.image;
+  }
+
+  // copies one tile of pixels into the image, for when the buffer is not shared
+  void copyTile(int col, int row) {
+    int stride = this.width * this.tileSize;
+    for (int y = row * this.tileSize; y < (row + 1) * this.tileSize; y++) {
+      for (int x = col * this.tileSize; x < (col + 1) * this.tileSize; x++) {
+        this.image.setColorAt(x, y, new Color(this.pixels[y * stride + x], true));
+      }
+    }
+  }
+}
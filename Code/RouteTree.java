@@ -0,0 +1,120 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+// A breadth-first parent tree over the current wiring, rooted at the power
+// station, used to route the station to any tile it is wired to along a
+// shortest path. The tree is kept between routes: moving the station re-roots
+// it along the path, and only a rotation of a tile in the tree, or next to it,
+// throws it away. Re-rooting keeps paths shortest only when the wiring around
+// the station has no loops, so with loops the tree is searched again instead.
+class RouteTree {
+  TileLayout layout;
+  int width;
+  int height;
+  // the parent of every tile in the tree, indexed by layout; the root is its
+  // own parent and tiles outside the tree have -1
+  int[] parent;
+  int root;
+  // whether parent still matches the wiring, otherwise it is rebuilt on use
+  boolean valid;
+  // whether the wiring the tree covers has no loops, so that it is the only
+  // path between any two of its tiles
+  boolean acyclic;
+  // scratch space for the search
+  int[] queue;
+  int wireEnds;
+
+  RouteTree(TileLayout layout, int width, int height) {
+    this.layout = layout;
+    this.width = width;
+    this.height = height;
+    this.parent = new int[width * height];
+    this.queue = new int[width * height];
+    this.valid = false;
+  }
+
+  // Searches the wiring outward from the given root
+  void build(ArrayList<GamePiece> nodes, int rootIdx) {
+    Arrays.fill(this.parent, -1);
+    this.root = rootIdx;
+    this.parent[rootIdx] = rootIdx;
+    int head = 0;
+    int tail = 0;
+    this.queue[tail++] = rootIdx;
+    this.wireEnds = 0;
+
+    // every wire in the tree has both of its ends counted
+    while (head < tail) {
+      int cur = this.queue[head++];
+      int m = nodes.get(cur).mask();
+      for (int side = GamePiece.TOP; side <= GamePiece.LEFT; side <<= 1) {
+        int next = this.layout.neighbor(cur, side);
+        if ((m & side) != 0 && next >= 0
+            && (nodes.get(next).mask() & GamePiece.opposite(side)) != 0) {
+          this.wireEnds++;
+          if (this.parent[next] < 0) {
+            this.parent[next] = cur;
+            this.queue[tail++] = next;
+          }
+        }
+      }
+    }
+    this.acyclic = this.wireEnds / 2 == tail - 1;
+    this.valid = true;
+  }
+
+  // Forgets the tree if the given rotated piece was in it or next to it
+  void rotated(GamePiece gp) {
+    int idx = this.layout.index(gp.col, gp.row);
+    if (this.valid && (this.inTree(idx)
+        || this.inTree(this.layout.neighbor(idx, GamePiece.TOP))
+        || this.inTree(this.layout.neighbor(idx, GamePiece.RIGHT))
+        || this.inTree(this.layout.neighbor(idx, GamePiece.BOTTOM))
+        || this.inTree(this.layout.neighbor(idx, GamePiece.LEFT)))) {
+      this.valid = false;
+    }
+  }
+
+  // whether the given position is on the board and in the tree
+  boolean inTree(int idx) {
+    return idx >= 0 && this.parent[idx] >= 0;
+  }
+
+  // The tiles from the root to the given tile along the wiring, empty if the
+  // tile is not wired to the root. The tree must be valid.
+  ArrayList<GamePiece> path(ArrayList<GamePiece> nodes, int target) {
+    ArrayList<GamePiece> result = new ArrayList<GamePiece>();
+    if (this.parent[target] < 0) {
+      return result;
+    }
+    int cur = target;
+    while (cur != this.root) {
+      result.add(nodes.get(cur));
+      cur = this.parent[cur];
+    }
+    result.add(nodes.get(this.root));
+    Collections.reverse(result);
+    return result;
+  }
+
+  // Makes the given tile of the tree the root by reversing the parent links
+  // on the path between it and the old root. If the wiring has loops the
+  // result would not be a breadth-first tree, so it is forgotten instead.
+  void reroot(int newRoot) {
+    if (!this.acyclic) {
+      this.valid = false;
+      return;
+    }
+    int child = newRoot;
+    int cur = this.parent[newRoot];
+    this.parent[newRoot] = newRoot;
+    while (child != this.root) {
+      int up = this.parent[cur];
+      this.parent[cur] = child;
+      child = cur;
+      cur = up;
+    }
+    this.root = newRoot;
+  }
+}
@@ -0,0 +1,542 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javalib.worldimages.Posn;
+
+// Records everything that happens in one session to a file, for replay and
+// analytics. The game only ever appends fixed-size records to an EventRing,
+// which never blocks; a RecordingWriter thread drains the ring once it is half
+// full, or its oldest record has waited FLUSH_NANOS, compresses what it drained
+// into blocks and appends them to the file. If the writer falls behind and the
+// ring fills up, new events are dropped and counted rather than waiting.
+//
+// A recorder holds little more than its ring: the writer owns the buffers and
+// the Deflater, and the file is only open while a block is appended, so a
+// server can record thousands of sessions without a file handle for each.
+//
+// File layout (big-endian):
+//   header  MAGIC, VERSION, width, height, seed (long),         32 bytes
+//           puzzle, pack path length, then the pack path        + the path
+//           in UTF-8; a game generated from the seed has
+//           puzzle -1 and no path, a pack game is puzzle n of
+//           the pack (version 1 files stop after the seed)
+//   blocks  record count, compressed length, then the deflated
+//           records, each RECORD_SIZE bytes: nanoseconds since
+//           recording started (long), kind, argument
+//
+// The argument of a tile event is the tile's column-major index
+// (col * height + row), and of a KEY event its position in KEYS.
+class SessionRecorder {
+  static int MAGIC = 0x4C455352;
+  static int VERSION = 2;
+  static int HEADER_SIZE = 32;
+  static int RECORD_SIZE = 16;
+
+  // the kinds of event
+  static int ROTATE_LEFT = 1;
+  static int ROTATE_RIGHT = 2;
+  static int ROUTE = 3;
+  static int KEY = 4;
+  static int TICK = 5;
+  // the keys that change the game, in the order they are numbered
+  static String[] KEYS = new String[] {"up", "down", "left", "right", "r"};
+
+  // the most records compressed into one block
+  static int BLOCK_RECORDS = 4096;
+  // how long a record may wait in the ring for more to share its block
+  static long FLUSH_NANOS = 1000000000L;
+  // the events a ring holds unless told otherwise
+  static int RING_SIZE = 256;
+
+  EventRing ring;
+  Path path;
+  long start;
+  RecordingWriter writer;
+  volatile boolean closed;
+  // completed by the writer once everything is written and the file is
+  // closed, or exceptionally with the failure if the recording broke
+  CompletableFuture<Void> finished;
+  // what went wrong in the writer, if anything
+  volatile IOException failure;
+
+  // updated by the writer only
+  volatile long blocksWritten;
+  volatile long bytesWritten;
+
+  SessionRecorder(Path path, int width, int height, long seed) throws IOException {
+    this(path, width, height, seed, RING_SIZE, RecordingWriter.shared());
+  }
+
+  // Records a game of puzzle n of the given pack, so that it is replayed from
+  // the pack rather than generated from the puzzle's seed
+  SessionRecorder(Path path, PuzzlePack pack, int n) throws IOException {
+    this(path, pack.width(n), pack.height(n), pack.seed(n),
+        pack.path.toAbsolutePath().toString(), n, RING_SIZE, RecordingWriter.shared());
+  }
+
+  SessionRecorder(Path path, int width, int height, long seed, int ringSize,
+      RecordingWriter writer) throws IOException {
+    this(path, width, height, seed, "", -1, ringSize, writer);
+  }
+
+  // Starts recording to the given file with room for ringSize events in memory,
+  // which must be a power of two, written out by the given writer. The game is
+  // puzzle n of the pack at packPath, or made from the seed if n is -1. The
+  // header is written now, so a file that cannot be written fails here.
+  SessionRecorder(Path path, int width, int height, long seed, String packPath, int n,
+      int ringSize, RecordingWriter writer) throws IOException {
+    this.ring = new EventRing(ringSize);
+    this.path = path;
+    this.finished = new CompletableFuture<Void>();
+    byte[] packName = packPath.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer head = ByteBuffer.allocate(HEADER_SIZE + packName.length);
+    head.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putLong(seed);
+    head.putInt(n).putInt(packName.length).put(packName);
+    head.flip();
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    try {
+      SessionRecorder.writeFully(channel, head);
+    }
+    finally {
+      channel.close();
+    }
+    this.start = System.nanoTime();
+    this.writer = writer;
+    writer.add(this);
+  }
+
+  // Records an event now. Never blocks; returns false if the event was dropped.
+  boolean record(int kind, int arg) {
+    if (this.closed) {
+      this.ring.dropped.incrementAndGet();
+      return false;
+    }
+    return this.ring.offer(System.nanoTime() - this.start, kind, arg);
+  }
+
+  // the position of the given key in KEYS, or -1 if it does not change the game
+  static int keyCode(String keyName) {
+    for (int i = 0; i < KEYS.length; i++) {
+      if (KEYS[i].equals(keyName)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  // events lost because the ring was full
+  long dropped() {
+    return this.ring.dropped.get();
+  }
+
+  // the most events ever waiting in the ring at once
+  long highWater() {
+    return this.ring.highWater.get();
+  }
+
+  // Writes out the ring if a block is due, from the writer thread only.
+  // Returns how many records were drained.
+  int service() {
+    // read before draining, so that the last drain sees every event
+    // recorded before close
+    boolean closing = this.closed;
+    int waiting = this.ring.size();
+    int drained = 0;
+
+    if (this.failure != null) {
+      drained = this.ring.drain(this.writer.raw);
+      this.writer.raw.clear();
+    }
+    else if (waiting > 0 && (closing || 2 * waiting >= this.ring.capacity
+        || System.nanoTime() - this.start - this.ring.oldestTime() >= FLUSH_NANOS)) {
+      try {
+        drained = this.writeBlocks(waiting);
+      }
+      catch (IOException e) {
+        this.failure = e;
+        this.writer.raw.clear();
+      }
+    }
+
+    if (closing && this.ring.size() == 0) {
+      this.finish();
+    }
+    return drained;
+  }
+
+  // Drains the given number of records into blocks in the writer's buffer and
+  // appends them to the file, which is open only for as long as that takes.
+  // Returns how many records were drained.
+  int writeBlocks(int records) throws IOException {
+    ByteBuffer raw = this.writer.raw;
+    int drained = 0;
+    FileChannel channel = FileChannel.open(this.path, StandardOpenOption.WRITE,
+        StandardOpenOption.APPEND);
+    try {
+      while (drained < records) {
+        raw.clear();
+        drained += this.ring.drain(raw);
+        int length = this.writer.compress();
+        ByteBuffer block = ByteBuffer.allocate(8 + length);
+        block.putInt(raw.position() / RECORD_SIZE).putInt(length)
+            .put(this.writer.packed, 0, length);
+        block.flip();
+        SessionRecorder.writeFully(channel, block);
+        this.blocksWritten++;
+        this.bytesWritten += 8 + length;
+      }
+    }
+    finally {
+      raw.clear();
+      channel.close();
+    }
+    return drained;
+  }
+
+  static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+    while (buf.hasRemaining()) {
+      channel.write(buf);
+    }
+  }
+
+  // Reports the recording done once the last block is written
+  void finish() {
+    if (this.failure != null) {
+      this.finished.completeExceptionally(this.failure);
+    }
+    else {
+      this.finished.complete(null);
+    }
+  }
+
+  // Gives up on the recording after the writer hit an unexpected error in it,
+  // so that the error neither stops the writer nor leaves close waiting
+  void fail(RuntimeException e) {
+    if (this.failure == null) {
+      this.failure = new IOException("Recording failed", e);
+    }
+    this.finish();
+  }
+
+  // Stops recording and returns at once; the writer writes out everything
+  // recorded so far and closes the file, then completes the returned future.
+  // Events recorded after this are dropped.
+  CompletableFuture<Void> close() {
+    this.closed = true;
+    this.writer.wake();
+    return this.finished;
+  }
+
+  // Closes the recording and waits for the file to be written, for callers
+  // that can afford to block on the disk, i.e. not the game
+  void closeAndWait() throws IOException {
+    try {
+      this.close().get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while closing the recording");
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+}
+
+// One background thread that writes out many SessionRecorders, so that a
+// server with thousands of recorded sessions does not need a thread for each.
+// It visits every recorder in turn, then sleeps; the sleep doubles from the
+// shortest to the longest while nothing arrives, so idle recordings cost next
+// to nothing. A ring must be able to hold half its size plus what arrives in
+// the longest sleep. Recorders are written one at a time, so they all share
+// the writer's buffers and Deflater.
+class RecordingWriter implements Runnable {
+  static long MIN_IDLE_NANOS = 1000000L;
+  static long MAX_IDLE_NANOS = 100000000L;
+  static RecordingWriter sharedWriter;
+
+  ConcurrentLinkedQueue<SessionRecorder> recorders;
+  Thread thread;
+  // the records of the block being written, and the block compressed
+  ByteBuffer raw;
+  Deflater deflater;
+  byte[] packed;
+
+  RecordingWriter() {
+    this.recorders = new ConcurrentLinkedQueue<SessionRecorder>();
+    this.raw = ByteBuffer.allocate(SessionRecorder.BLOCK_RECORDS * SessionRecorder.RECORD_SIZE);
+    this.deflater = new Deflater(Deflater.BEST_SPEED);
+    this.packed = new byte[this.raw.capacity() + this.raw.capacity() / 100 + 64];
+    this.thread = new Thread(this, "recording-writer");
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  // the writer used by recorders that were not given one
+  static synchronized RecordingWriter shared() {
+    if (sharedWriter == null) {
+      sharedWriter = new RecordingWriter();
+    }
+    return sharedWriter;
+  }
+
+  void add(SessionRecorder recorder) {
+    this.recorders.add(recorder);
+  }
+
+  // cuts the current sleep short, e.g. so that a closing recorder is finished
+  void wake() {
+    LockSupport.unpark(this.thread);
+  }
+
+  // Compresses the records in raw into packed and returns the length
+  int compress() {
+    this.deflater.reset();
+    this.deflater.setInput(this.raw.array(), 0, this.raw.position());
+    this.deflater.finish();
+    int length = 0;
+    while (!this.deflater.finished()) {
+      length += this.deflater.deflate(this.packed, length, this.packed.length - length);
+    }
+    return length;
+  }
+
+  public void run() {
+    long idle = MIN_IDLE_NANOS;
+    while (true) {
+      int drained = 0;
+      Iterator<SessionRecorder> it = this.recorders.iterator();
+      while (it.hasNext()) {
+        SessionRecorder rec = it.next();
+        try {
+          drained += rec.service();
+        }
+        catch (RuntimeException e) {
+          rec.fail(e);
+        }
+        if (rec.finished.isDone()) {
+          it.remove();
+        }
+      }
+      if (drained > 0) {
+        idle = MIN_IDLE_NANOS;
+      }
+      LockSupport.parkNanos(this, idle);
+      idle = Math.min(2 * idle, MAX_IDLE_NANOS);
+    }
+  }
+}
+
+// A bounded ring of fixed-size event records with one producer (the game) and
+// one consumer (the writer). Each side only ever moves its own counter, so
+// neither needs a lock, and the producer drops the event when the ring is full
+// instead of waiting for room.
+class EventRing {
+  // two slots per record: the time, then the kind and argument
+  long[] slots;
+  int capacity;
+  // the number of records ever taken and ever added
+  AtomicLong head;
+  AtomicLong tail;
+  // back-pressure: records refused because the ring was full, and the
+  // fullest the ring has been
+  AtomicLong dropped;
+  AtomicLong highWater;
+
+  EventRing(int capacity) {
+    if (Integer.bitCount(capacity) != 1) {
+      throw new IllegalArgumentException("Ring size must be a power of two: " + capacity);
+    }
+    this.slots = new long[2 * capacity];
+    this.capacity = capacity;
+    this.head = new AtomicLong(0);
+    this.tail = new AtomicLong(0);
+    this.dropped = new AtomicLong(0);
+    this.highWater = new AtomicLong(0);
+  }
+
+  // Adds a record if there is room, from the producer thread only
+  boolean offer(long time, int kind, int arg) {
+    long t = this.tail.get();
+    long used = t - this.head.get();
+    if (used >= this.capacity) {
+      this.dropped.incrementAndGet();
+      return false;
+    }
+    int slot = (int) (t & (this.capacity - 1)) * 2;
+    this.slots[slot] = time;
+    this.slots[slot + 1] = ((long) kind << 32) | (arg & 0xFFFFFFFFL);
+    // publishes the record to the consumer
+    this.tail.lazySet(t + 1);
+    if (used + 1 > this.highWater.get()) {
+      this.highWater.lazySet(used + 1);
+    }
+    return true;
+  }
+
+  // Moves as many records as fit into out, from the consumer thread only,
+  // and returns how many were moved
+  int drain(ByteBuffer out) {
+    long h = this.head.get();
+    int n = (int) Math.min(this.tail.get() - h, out.remaining() / SessionRecorder.RECORD_SIZE);
+    for (int i = 0; i < n; i++) {
+      int slot = (int) ((h + i) & (this.capacity - 1)) * 2;
+      long rest = this.slots[slot + 1];
+      out.putLong(this.slots[slot]).putInt((int) (rest >>> 32)).putInt((int) rest);
+    }
+    // hands the slots back to the producer
+    this.head.lazySet(h + n);
+    return n;
+  }
+
+  // the time of the oldest record waiting, from the consumer thread only and
+  // only while size() is not 0
+  long oldestTime() {
+    return this.slots[(int) (this.head.get() & (this.capacity - 1)) * 2];
+  }
+
+  // the number of records waiting
+  int size() {
+    return (int) (this.tail.get() - this.head.get());
+  }
+}
+
+// A recording read back from a SessionRecorder file
+class SessionRecording {
+  int width;
+  int height;
+  long seed;
+  // the pack the game came from and its puzzle, or null and -1 if the game
+  // was generated from the seed
+  String pack;
+  int puzzle;
+  int count;
+  long[] times;
+  int[] kinds;
+  int[] args;
+
+  SessionRecording(Path path) throws IOException {
+    ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(path));
+    if (buf.remaining() < 8 || buf.getInt() != SessionRecorder.MAGIC) {
+      throw new IOException("Not a session recording: " + path);
+    }
+    // version 1 headers stop after the seed
+    int version = buf.getInt();
+    int headerSize = version == 1 ? 24 : SessionRecorder.HEADER_SIZE;
+    if ((version != 1 && version != SessionRecorder.VERSION)
+        || buf.remaining() < headerSize - 8) {
+      throw new IOException("Not a session recording: " + path);
+    }
+    this.width = buf.getInt();
+    this.height = buf.getInt();
+    this.seed = buf.getLong();
+    this.puzzle = -1;
+    if (version != 1) {
+      this.puzzle = buf.getInt();
+      int packLength = buf.getInt();
+      if (packLength < 0 || packLength > buf.remaining()) {
+        throw new IOException("Corrupt header in " + path);
+      }
+      if (packLength > 0) {
+        this.pack = new String(buf.array(), buf.position(), packLength, StandardCharsets.UTF_8);
+        buf.position(buf.position() + packLength);
+      }
+    }
+    this.times = new long[SessionRecorder.BLOCK_RECORDS];
+    this.kinds = new int[SessionRecorder.BLOCK_RECORDS];
+    this.args = new int[SessionRecorder.BLOCK_RECORDS];
+
+    Inflater inflater = new Inflater();
+    try {
+      while (buf.remaining() >= 8) {
+        int records = buf.getInt();
+        int length = buf.getInt();
+        byte[] raw = new byte[records * SessionRecorder.RECORD_SIZE];
+        inflater.reset();
+        inflater.setInput(buf.array(), buf.position(), length);
+        if (inflater.inflate(raw) != raw.length) {
+          throw new IOException("Truncated block in " + path);
+        }
+        buf.position(buf.position() + length);
+        this.addAll(ByteBuffer.wrap(raw), records);
+      }
+    }
+    catch (DataFormatException e) {
+      throw new IOException("Corrupt block in " + path, e);
+    }
+    finally {
+      inflater.end();
+    }
+  }
+
+  // Appends the given number of records from raw
+  void addAll(ByteBuffer raw, int records) {
+    if (this.count + records > this.times.length) {
+      int size = Math.max(this.count + records, 2 * this.times.length);
+      this.times = Arrays.copyOf(this.times, size);
+      this.kinds = Arrays.copyOf(this.kinds, size);
+      this.args = Arrays.copyOf(this.args, size);
+    }
+    for (int i = 0; i < records; i++) {
+      this.times[this.count] = raw.getLong();
+      this.kinds[this.count] = raw.getInt();
+      this.args[this.count] = raw.getInt();
+      this.count++;
+    }
+  }
+
+  // Plays the recording back on a fresh copy of the game: the same puzzle of
+  // the same pack, or a game generated from the recorded seed
+  LightEmAll replay() throws IOException {
+    LightEmAll world;
+    if (this.pack != null) {
+      world = new LightEmAll(new PuzzlePack(Paths.get(this.pack)), this.puzzle);
+    }
+    else {
+      world = new LightEmAll(this.width, this.height, new Random(this.seed));
+    }
+    for (int i = 0; i < this.count; i++) {
+      int kind = this.kinds[i];
+      Posn tile = new Posn(this.args[i] / this.height * GamePiece.TILE_SIZE,
+          this.args[i] % this.height * GamePiece.TILE_SIZE);
+      if (kind == SessionRecorder.ROTATE_LEFT) {
+        world.onMouseClicked(tile, "LeftButton");
+      }
+      else if (kind == SessionRecorder.ROTATE_RIGHT) {
+        world.onMouseClicked(tile, "RightButton");
+      }
+      else if (kind == SessionRecorder.ROUTE) {
+        world.onMouseClicked(tile, "MiddleButton");
+      }
+      else if (kind == SessionRecorder.KEY) {
+        world.onKeyEvent(SessionRecorder.KEYS[this.args[i]]);
+      }
+      else if (kind == SessionRecorder.TICK) {
+        world.onTick();
+      }
+    }
+    return world;
+  }
+}
@@ -0,0 +1,242 @@
+// Decides where each tile of a board lives in a flat array, i.e. the order of
+// LightEmAll.nodes and of every per-tile array indexed the same way. Keeping
+// tiles that are close on the board close in memory makes floods and searches
+// that move vertically as cache friendly as ones that move horizontally.
+interface TileLayout {
+  // the position of the tile at (col, row)
+  int index(int col, int row);
+
+  // the column of the tile at the given position
+  int col(int index);
+
+  // the row of the tile at the given position
+  int row(int index);
+
+  // the position of the tile on the given side (a GamePiece side bit) of the
+  // one at the given position, or -1 past the edge of the board
+  int neighbor(int index, int side);
+}
+
+// Whole columns one after another, the order the board has always used
+class ColumnMajorLayout implements TileLayout {
+  int width;
+  int height;
+
+  ColumnMajorLayout(int width, int height) {
+    this.width = width;
+    this.height = height;
+  }
+
+  public int index(int col, int row) {
+    return col * this.height + row;
+  }
+
+  public int col(int index) {
+    return index / this.height;
+  }
+
+  public int row(int index) {
+    return index % this.height;
+  }
+
+  public int neighbor(int index, int side) {
+    int row = index % this.height;
+    if (side == GamePiece.TOP) {
+      return row > 0 ? index - 1 : -1;
+    }
+    else if (side == GamePiece.RIGHT) {
+      return index < (this.width - 1) * this.height ? index + this.height : -1;
+    }
+    else if (side == GamePiece.BOTTOM) {
+      return row < this.height - 1 ? index + 1 : -1;
+    }
+    else {
+      return index >= this.height ? index - this.height : -1;
+    }
+  }
+}
+
+// Whole rows one after another
+class RowMajorLayout implements TileLayout {
+  int width;
+  int height;
+
+  RowMajorLayout(int width, int height) {
+    this.width = width;
+    this.height = height;
+  }
+
+  public int index(int col, int row) {
+    return row * this.width + col;
+  }
+
+  public int col(int index) {
+    return index % this.width;
+  }
+
+  public int row(int index) {
+    return index / this.width;
+  }
+
+  public int neighbor(int index, int side) {
+    int col = index % this.width;
+    if (side == GamePiece.TOP) {
+      return index >= this.width ? index - this.width : -1;
+    }
+    else if (side == GamePiece.RIGHT) {
+      return col < this.width - 1 ? index + 1 : -1;
+    }
+    else if (side == GamePiece.BOTTOM) {
+      return index < (this.height - 1) * this.width ? index + this.width : -1;
+    }
+    else {
+      return col > 0 ? index - 1 : -1;
+    }
+  }
+}
+
+// Square blocks of tiles, each stored column-major, with the blocks themselves
+// stored column-major. Blocks along the right and bottom edges are cut short
+// to fit the board, so there are no gaps in the array.
+class BlockedLayout implements TileLayout {
+  int width;
+  int height;
+  int block;
+
+  BlockedLayout(int width, int height, int block) {
+    this.width = width;
+    this.height = height;
+    this.block = block;
+  }
+
+  public int index(int col, int row) {
+    int c0 = col - col % this.block;
+    int r0 = row - row % this.block;
+    int bw = Math.min(this.block, this.width - c0);
+    int bh = Math.min(this.block, this.height - r0);
+    return c0 * this.height + r0 * bw + this.inner(col - c0, row - r0, bw, bh);
+  }
+
+  public int col(int index) {
+    int c0 = index / (this.block * this.height) * this.block;
+    int bw = Math.min(this.block, this.width - c0);
+    int rest = index - c0 * this.height;
+    int r0 = rest / (this.block * bw) * this.block;
+    int bh = Math.min(this.block, this.height - r0);
+    return c0 + this.innerCol(rest - r0 * bw, bw, bh);
+  }
+
+  public int row(int index) {
+    int c0 = index / (this.block * this.height) * this.block;
+    int bw = Math.min(this.block, this.width - c0);
+    int rest = index - c0 * this.height;
+    int r0 = rest / (this.block * bw) * this.block;
+    int bh = Math.min(this.block, this.height - r0);
+    return r0 + this.innerRow(rest - r0 * bw, bw, bh);
+  }
+
+  // finds the block once, and stays inside it unless the step leaves it
+  public int neighbor(int index, int side) {
+    int c0 = index / (this.block * this.height) * this.block;
+    int bw = Math.min(this.block, this.width - c0);
+    int rest = index - c0 * this.height;
+    int r0 = rest / (this.block * bw) * this.block;
+    int bh = Math.min(this.block, this.height - r0);
+    int base = c0 * this.height + r0 * bw;
+    int dx = this.innerCol(index - base, bw, bh);
+    int dy = this.innerRow(index - base, bw, bh);
+    if (side == GamePiece.TOP) {
+      dy--;
+    }
+    else if (side == GamePiece.RIGHT) {
+      dx++;
+    }
+    else if (side == GamePiece.BOTTOM) {
+      dy++;
+    }
+    else {
+      dx--;
+    }
+    if (dx >= 0 && dx < bw && dy >= 0 && dy < bh) {
+      return base + this.inner(dx, dy, bw, bh);
+    }
+    int col = c0 + dx;
+    int row = r0 + dy;
+    if (col < 0 || col >= this.width || row < 0 || row >= this.height) {
+      return -1;
+    }
+    return this.index(col, row);
+  }
+
+  // the position of (dx, dy) within a bw x bh block
+  int inner(int dx, int dy, int bw, int bh) {
+    return dx * bh + dy;
+  }
+
+  // the column within a bw x bh block of the given position in it
+  int innerCol(int inner, int bw, int bh) {
+    return inner / bh;
+  }
+
+  // the row within a bw x bh block of the given position in it
+  int innerRow(int inner, int bw, int bh) {
+    return inner % bh;
+  }
+}
+
+// Z-order (Morton order) within square blocks whose side is a power of two,
+// so that any aligned square of tiles inside a block is contiguous. Blocks cut
+// short by the edges of the board fall back to column-major order.
+class MortonLayout extends BlockedLayout {
+  MortonLayout(int width, int height, int block) {
+    super(width, height, block);
+    if (Integer.bitCount(block) != 1) {
+      throw new IllegalArgumentException("Morton blocks must be a power of two: " + block);
+    }
+  }
+
+  MortonLayout(int width, int height) {
+    this(width, height, 64);
+  }
+
+  int inner(int dx, int dy, int bw, int bh) {
+    if (bw == this.block && bh == this.block) {
+      return MortonLayout.spread(dx) | (MortonLayout.spread(dy) << 1);
+    }
+    return super.inner(dx, dy, bw, bh);
+  }
+
+  int innerCol(int inner, int bw, int bh) {
+    if (bw == this.block && bh == this.block) {
+      return MortonLayout.compact(inner);
+    }
+    return super.innerCol(inner, bw, bh);
+  }
+
+  int innerRow(int inner, int bw, int bh) {
+    if (bw == this.block && bh == this.block) {
+      return MortonLayout.compact(inner >>> 1);
+    }
+    return super.innerRow(inner, bw, bh);
+  }
+
+  // spreads the low 16 bits of v out to the even bits of the result
+  static int spread(int v) {
+    v &= 0xFFFF;
+    v = (v | (v << 8)) & 0x00FF00FF;
+    v = (v | (v << 4)) & 0x0F0F0F0F;
+    v = (v | (v << 2)) & 0x33333333;
+    v = (v | (v << 1)) & 0x55555555;
+    return v;
+  }
+
+  // gathers the even bits of v back into its low 16 bits
+  static int compact(int v) {
+    v &= 0x55555555;
+    v = (v | (v >>> 1)) & 0x33333333;
+    v = (v | (v >>> 2)) & 0x0F0F0F0F;
+    v = (v | (v >>> 4)) & 0x00FF00FF;
+    v = (v | (v >>> 8)) & 0x0000FFFF;
+    return v;
+  }
+}